@@ -2,6 +2,9 @@
   (use bzzz.util)
   (use bzzz.const)
   (:import (java.io StringReader File Reader)
+           (java.util.concurrent.atomic AtomicLong)
+           (com.googlecode.concurrentlinkedhashmap ConcurrentLinkedHashMap ConcurrentLinkedHashMap$Builder
+                                                   EvictionListener)
            (java.util.regex Pattern)
            (bzzz.java.analysis CodeTokenizer BytePayloadTokenizer)
            (org.apache.lucene.analysis.pattern PatternReplaceCharFilter)
@@ -54,22 +57,22 @@
     (to-char-filter (gen-char-filter reader (first filters)) (next filters))))
 
 (defn to-lucene-tokenizer [name obj ^Reader reader]
-  (let [char-filter ^CharFilter (to-char-filter reader
-                                    (get obj :char-filter []))]
-    (case (as-str name)
-      "whitespace" (WhitespaceTokenizer. *version* char-filter)
-      "letter" (LetterTokenizer. *version* char-filter)
-      "code" (CodeTokenizer. char-filter)
-      "byte-payload" (BytePayloadTokenizer. char-filter)
-      "keyword" (KeywordTokenizer. char-filter)
-      "edge-ngram" (EdgeNGramTokenizer. *version*
-                                        char-filter
-                                        (int (need :min_gram obj "need <min_gram>"))
-                                        (int (need :max_gram obj "need <max_gram>")))
-      "ngram" (NGramTokenizer. *version*
-                               char-filter
-                               (int (need :min_gram obj "need <min_gram>"))
-                               (int (need :max_gram obj "need <max_gram>"))))))
+  ;; the char filters are applied in initReader, so they are also used
+  ;; when the components are reused with a new reader
+  (case (as-str name)
+    "whitespace" (WhitespaceTokenizer. *version* reader)
+    "letter" (LetterTokenizer. *version* reader)
+    "code" (CodeTokenizer. reader)
+    "byte-payload" (BytePayloadTokenizer. reader)
+    "keyword" (KeywordTokenizer. reader)
+    "edge-ngram" (EdgeNGramTokenizer. *version*
+                                      reader
+                                      (int (need :min_gram obj "need <min_gram>"))
+                                      (int (need :max_gram obj "need <max_gram>")))
+    "ngram" (NGramTokenizer. *version*
+                             reader
+                             (int (need :min_gram obj "need <min_gram>"))
+                             (int (need :max_gram obj "need <max_gram>")))))
 (defn gen-token-filter [^TokenStream source obj]
   (let [type (need :type obj "need tokenfilter <type>: 'custom|whitespace|keyword..'")]
     (case (as-str type)
@@ -105,6 +108,8 @@
   (let [tokenizer (need :tokenizer obj "need <tokenizer>: 'ngram|edge-ngram|whitespace|keyword...'")
         filter (get obj :filter [])]
     (proxy [Analyzer][]
+      (initReader [^String field ^Reader reader]
+        (to-char-filter reader (get obj :char-filter [])))
       (createComponents [^String field ^Reader reader]
         (let [t (to-lucene-tokenizer tokenizer obj reader)]
           (if (> (count filter) 0)
@@ -119,8 +124,83 @@
       "standard" (StandardAnalyzer. *version*)
       "custom" (token-filter-chain obj))))
 
-(defn parse-analyzer [input]
+(defn new-analyzer [input]
   (PerFieldAnalyzerWrapper. (StandardAnalyzer. *version*)
                             (into { id-field (KeywordAnalyzer.) }
                                   (for [[key value] (if (nil? input) {} input)]
                                     { (as-str key) (parse-lucene-analyzer value) }))))
+
+;; analyzers keep their TokenStreamComponents per thread, so building
+;; a new one for every request throws away all the tokenizers and
+;; filters. They are cached by their canonical json definition (sorted
+;; keys, so {"a":..,"b":..} and {"b":..,"a":..} are the same analyzer).
+;; Evicted analyzers are not closed, another thread might still be
+;; using them, their thread locals go away with them.
+;; Every entry counts its hits and misses (the one that built it, and
+;; the ones that lost the race to build it). The counts of evicted
+;; entries are kept in a second LRU of the same size, so an analyzer
+;; that is built again continues from them.
+(def analyzer-hits (AtomicLong. 0))
+(def analyzer-misses (AtomicLong. 0))
+(def analyzer-evictions (AtomicLong. 0))
+
+(defonce ^ConcurrentLinkedHashMap evicted-analyzer-stats
+  (.build (doto (ConcurrentLinkedHashMap$Builder.)
+            (.maximumWeightedCapacity default-analyzer-cache-size))))
+
+(defn new-analyzer-cache ^ConcurrentLinkedHashMap [capacity]
+  (.build (doto (ConcurrentLinkedHashMap$Builder.)
+            (.maximumWeightedCapacity capacity)
+            (.listener (reify EvictionListener
+                         (onEviction [this k v]
+                           (.incrementAndGet ^AtomicLong analyzer-evictions)
+                           (.put evicted-analyzer-stats k [(.get ^AtomicLong (:hits v))
+                                                           (.get ^AtomicLong (:misses v))])))))))
+
+(defonce ^ConcurrentLinkedHashMap analyzer-cache (new-analyzer-cache default-analyzer-cache-size))
+
+(defn canonical-key [input]
+  (canonical-json (if (nil? input) {} input)))
+
+(defn parse-analyzer [input]
+  (let [k (canonical-key input)]
+    (if-let [entry (.get analyzer-cache k)]
+      (do
+        (.incrementAndGet ^AtomicLong analyzer-hits)
+        (.incrementAndGet ^AtomicLong (:hits entry))
+        (:analyzer entry))
+      ;; building is cheap, if two threads race the first one wins
+      (let [[hits misses] (.remove evicted-analyzer-stats k)
+            entry {:analyzer (new-analyzer input)
+                   :hits (AtomicLong. (or hits 0))
+                   :misses (AtomicLong. (inc (or misses 0)))}
+            existing (.putIfAbsent analyzer-cache k entry)]
+        (.incrementAndGet ^AtomicLong analyzer-misses)
+        (when existing
+          (.addAndGet ^AtomicLong (:hits existing) (or hits 0))
+          (.addAndGet ^AtomicLong (:misses existing) (inc (or misses 0))))
+        (:analyzer (or existing entry))))))
+
+(defn set-analyzer-cache-size [n]
+  (.setCapacity evicted-analyzer-stats (long n))
+  (.setCapacity analyzer-cache (long n)))
+
+(defn hit-rate [hits misses]
+  (if (> (+ hits misses) 0)
+    (double (/ hits (+ hits misses)))
+    0.0))
+
+(defn analyzer-stat []
+  (let [hits (.get ^AtomicLong analyzer-hits)
+        misses (.get ^AtomicLong analyzer-misses)]
+    {:hits hits
+     :misses misses
+     :evictions (.get ^AtomicLong analyzer-evictions)
+     :hit-rate (hit-rate hits misses)
+     :size (.size analyzer-cache)
+     :analyzers (into {} (for [[k entry] analyzer-cache
+                               :let [h (.get ^AtomicLong (:hits entry))
+                                     m (.get ^AtomicLong (:misses entry))]]
+                           [k {:hits h
+                               :misses m
+                               :hit-rate (hit-rate h m)}]))}))
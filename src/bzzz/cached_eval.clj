@@ -1,26 +1,124 @@
 (ns bzzz.cached-eval
   (use bzzz.util)
+  (use bzzz.const)
   (:require [bzzz.index-stat :as index-stat])
-  (:import (com.googlecode.concurrentlinkedhashmap ConcurrentLinkedHashMap ConcurrentLinkedHashMap$Builder)))
+  (:require [bzzz.log :as log])
+  (:import (com.googlecode.concurrentlinkedhashmap ConcurrentLinkedHashMap ConcurrentLinkedHashMap$Builder
+                                                   EvictionListener)
+           (java.util.concurrent.atomic AtomicLong)))
 
-(defonce expr-cache ^java.util.Map
-  (let [b ^java.util.Map (ConcurrentLinkedHashMap$Builder.)]
-    (.maximumWeightedCapacity b 1000)
-    (.build b)))
+;; compiled expressions, keyed by their source. Every key holds a delay
+;; that compiles it, so concurrent requests for the same expression
+;; compile it once and wait for that, while different expressions
+;; compile in parallel. An expression that fails to compile is removed,
+;; the next request tries again.
+(def hits (AtomicLong. 0))
+(def misses (AtomicLong. 0))
+(def evictions (AtomicLong. 0))
+(def failures (AtomicLong. 0))
 
-(defonce giant (Object.))
+(defonce ^ConcurrentLinkedHashMap expr-cache
+  (.build (doto (ConcurrentLinkedHashMap$Builder.)
+            (.maximumWeightedCapacity default-expr-cache-size)
+            (.listener (reify EvictionListener
+                         (onEviction [this k v]
+                           (.incrementAndGet ^AtomicLong evictions)))))))
+
+(defn set-expr-cache-size [n]
+  (.setCapacity expr-cache (long n)))
+
+(defn expr-cache-stat []
+  {:hits (.get ^AtomicLong hits)
+   :misses (.get ^AtomicLong misses)
+   :evictions (.get ^AtomicLong evictions)
+   :failures (.get ^AtomicLong failures)
+   :size (.size expr-cache)
+   :capacity (.capacity expr-cache)})
+
+(defn get-or-eval* [key expr evaluate]
+  (let [compiled (delay
+                  (let [t0 (time-ms)
+                        evaluated-expr (evaluate (read-string expr))]
+                    (index-stat/update-took-count index-stat/total
+                                                  "eval"
+                                                  (time-took t0))
+                    evaluated-expr))
+        existing (.putIfAbsent expr-cache key compiled)
+        ^clojure.lang.Delay d (or existing compiled)
+        ^AtomicLong counter (if existing hits misses)]
+    (.incrementAndGet counter)
+    (try
+      @d
+      (catch Throwable e
+        (when (.remove expr-cache key d)
+          (.incrementAndGet ^AtomicLong failures))
+        (throw e)))))
 
 (defn get-or-eval [expr]
-  (if-let [v (.get ^java.util.Map expr-cache expr)]
-    v
-    (locking giant
-      (if-let [v (.get ^java.util.Map expr-cache expr)]
-        v
-        (let [t0 (time-ms)
-              evaluated-expr (eval (read-string expr))]
-          (index-stat/update-took-count index-stat/total
-                                        "eval"
-                                        (time-took t0))
-          (.put ^java.util.Map expr-cache expr evaluated-expr)
-          evaluated-expr)))))
+  (get-or-eval* expr expr eval))
+
+(defn tag-param [param tag]
+  (if (and (symbol? param) (not (:tag (meta param))))
+    (vary-meta param assoc :tag tag)
+    param))
+
+(defn scorer-form
+  "a single arity (fn [ctx] ...) or (fn [ctx args] ...) gets a ^double
+  return hint (and its body is cast to double), so it compiles to
+  IFn$OD/IFn$OOD and the scorer calls invokePrim instead of boxing every
+  score, and ctx is hinted as ExpressionContext so its methods are not
+  called by reflection. Anything else is left as it is and called
+  through invoke."
+  [form]
+  (if (and (seq? form) (= 'fn (first form)))
+    (let [[head & more] form
+          [fn-name more] (if (symbol? (first more))
+                           [(first more) (rest more)]
+                           [nil more])
+          params (first more)]
+      (if (and (vector? params)
+               (<= 1 (count params) 2)
+               (not-any? #{'&} params)
+               (not (:tag (meta params))))
+        (apply list head (concat (when fn-name [fn-name])
+                                 [(vary-meta (assoc params 0 (tag-param (first params) 'bzzz.java.query.ExpressionContext))
+                                             assoc :tag 'double)
+                                  (list 'double (apply list 'do (rest more)))]))
+        form))
+    form))
+
+(defn eval-scorer [form]
+  (let [prim (scorer-form form)]
+    (if (identical? prim form)
+      (eval form)
+      ;; the body is no longer in tail position, fns that recur to
+      ;; their head do not compile like that
+      (try
+        (eval prim)
+        (catch Exception e
+          (eval form))))))
+
+(defn get-or-eval-scorer
+  "like get-or-eval, for the clj-eval of term-payload-clj-score"
+  [expr]
+  (get-or-eval* [:scorer expr] expr eval-scorer))
 
+(defn warmup
+  "compiles the expressions in file before the first request needs
+  them, the file is json: {\"eval\":[\"(fn ...)\"...],\"scorer\":[...]}
+  with the hash-fn/init/kv expressions in eval and the clj-eval of
+  term-payload-clj-score queries in scorer"
+  [file]
+  (let [input (jr (slurp file))
+        t0 (time-ms)
+        results (doall (pmap (fn [[f expr]]
+                               (try
+                                 (f expr)
+                                 true
+                                 (catch Throwable e
+                                   (log/warn "failed to compile <" expr ">" (ex-str e))
+                                   false)))
+                             (concat (for [expr (get input :eval [])] [get-or-eval expr])
+                                     (for [expr (get input :scorer [])] [get-or-eval-scorer expr]))))]
+    (log/info "compiled" (count (filter true? results)) "of" (count results)
+              "expressions from" file "in" (time-took t0) "ms")))
@@ -11,3 +11,32 @@
 (def default-identifier :__global_partition_0)
 (def default-acceptable-discover-time-diff 20)
 (def location-field "__location")
+(def default-commit-window-ms 0)
+(def default-commit-window-writes 64)
+(def default-nrt-max-stale-ms 1000)
+(def default-nrt-min-stale-ms 25)
+(def default-search-threads (* 2 (.availableProcessors (Runtime/getRuntime))))
+(def default-search-queue 1000)
+(def default-store-threads (.availableProcessors (Runtime/getRuntime)))
+(def default-store-queue 100)
+(def default-segment-threads (.availableProcessors (Runtime/getRuntime)))
+(def default-segment-queue 1000)
+(def default-retry-after-seconds 1)
+(def default-store-spool-kb 4096)
+(def default-response-chunk-hits 64)
+(def default-peer-ewma-alpha 0.3)
+(def default-peer-ewma-half-life-ms 10000)
+(def default-peer-load-max-age-ms 100000)
+(def default-latency-samples 512)
+(def default-hedge-percentile 0.95)
+(def default-hedge-max-ratio 0.05)
+(def default-hedge-half-life-ms 10000)
+(def default-redis-cache-mb 256)
+(def default-redis-lock-lease-ms 30000)
+(def default-nrt-merge-mb 5)
+(def default-analyzer-cache-size 1000)
+(def default-query-cache-size 10000)
+(def default-filter-cache-mb 64)
+(def default-result-cache-mb 0)
+(def default-term-stats-cache-size 100000)
+(def default-expr-cache-size 1000)
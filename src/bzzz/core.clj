@@ -13,57 +13,233 @@
   (:require [bzzz.index-directory :as index-directory])
   (:require [bzzz.index-store :as index-store])
   (:require [bzzz.index-stat :as index-stat])
+  (:require [bzzz.executor :as executor])
+  (:require [bzzz.json-stream :as json-stream])
   (:require [bzzz.analyzer :as analyzer])
   (:require [bzzz.query :as query])
+  (:require [bzzz.filter-cache :as filter-cache])
+  (:require [bzzz.cached-eval :as cached-eval])
   (:require [bzzz.state :as state])
   (:require [clojure.core.async :as async])
   (:require [clojure.tools.cli :refer [parse-opts]])
   (:require [clojure.data.json :as json])
   (:require [org.httpkit.client :as http-client])
+  (:import (java.util.concurrent RejectedExecutionException)
+           (java.util.concurrent.atomic AtomicReference)
+           (java.io ByteArrayInputStream)
+           (bzzz.java.wire BinaryCodec)
+           (bzzz.java.store RedisBlockCache RedisLock))
   (:gen-class :main true))
 
 (def port* (atom const/default-port))
+(def json-peers* (atom false))
+
+(defn binary? [content-type]
+  (and content-type
+       (.startsWith ^String content-type BinaryCodec/CONTENT_TYPE)))
+
+(defn read-peer-response [headers body]
+  (if (binary? (:content-type headers))
+    (BinaryCodec/decode ^bytes body)
+    (jr (String. ^bytes body "UTF-8"))))
 
 ;; [ "a", ["b","c",["d","e"]]]
-(defn search-remote [hosts input c]
-  (let [part (if (or (vector? hosts) (list? hosts)) hosts [hosts])
+(defn part-of [hosts]
+  (if (or (vector? hosts) (list? hosts)) hosts [hosts]))
+
+(defn search-remote-on [resolved hosts input c]
+  (let [part (part-of hosts)
         is-multi (> (count part) 1)
-        resolved (discover/peer-resolve (first part))
-        args {:timeout (get input :timeout 1000)
-              :as :text
-              :body (json/write-str (if is-multi
-                                      (assoc input :hosts part)
-                                      input))}
+        t0 (time-ms)
+        timeout (get input :timeout 1000)
+        done (fn [error]
+               ;; errors and overload count as a full timeout for the latency average
+               (discover/request-end resolved
+                                     (if error (max timeout (time-took t0)) (time-took t0))
+                                     error))
+        ;; peers keep the :_cursor of the hits in their answer
+        input (assoc (if is-multi
+                       (assoc input :hosts part)
+                       input)
+                :peer-request true)
+        args (if @json-peers*
+               {:timeout timeout
+                :as :byte-array
+                :body (json/write-str input)}
+               {:timeout timeout
+                :as :byte-array
+                :headers {"Content-Type" BinaryCodec/CONTENT_TYPE
+                          "Accept" BinaryCodec/CONTENT_TYPE}
+                :body (BinaryCodec/encode input)})
         callback (fn [{:keys [status headers body error]}]
+                   (done (boolean (or error
+                                      (= 429 status)
+                                      (and status (>= status 500)))))
                    (if error
                      (async/>!! c {:exception (str resolved " " error)})
                      (try
-                       (async/>!! c (jr body))
+                       (async/>!! c (read-peer-response headers body))
                        (catch Throwable e
                          (async/>!! c {:exception (str resolved " " (ex-str e))})))))]
     (log/trace "<" input "> in part <" part "> to resolved <" resolved ">")
+    (discover/request-start resolved)
     (try
       (if is-multi
         (http-client/put resolved args callback)
         (http-client/get resolved args callback))
       (catch Throwable e
-        (async/>!! c {:exception (str resolved " " (ex-str e))})))))
+        (done true)
+        (async/>!! c {:exception (str resolved " " (ex-str e))})))
+    resolved))
+
+(defn search-remote
+  "returns the host the part was resolved to"
+  [hosts input c]
+  (search-remote-on (discover/peer-resolve (first (part-of hosts))) hosts input c))
+
+;; hedging:
+;; {"hedge-after-ms": 50} or {"hedge": true} (use the p95 of the recent
+;; peer response times), if a part did not answer by then, the same
+;; request is sent to another replica of the same identifier and the
+;; first good answer wins. At most default-hedge-max-ratio of the parts
+;; are hedged, so an overloaded cluster does not get twice the load.
+;; The parts and hedges are counted with a half-life of
+;; default-hedge-half-life-ms, so the budget follows the recent traffic
+;; and a burst after a quiet period can not spend what was saved up.
+(def ^AtomicReference hedge-budget (AtomicReference. [0.0 0.0 0])) ;; [parts hedges at-ms]
+
+(defn decay-hedge-budget [[parts hedges at] now]
+  (let [f (Math/pow 0.5 (/ (max 0 (- now at)) (double const/default-hedge-half-life-ms)))]
+    [(* parts f) (* hedges f) now]))
+
+(defn update-hedge-budget
+  "f gets the decayed budget and returns the new one, or nil to leave
+  it as it is. Returns true if it was updated"
+  [f]
+  (loop []
+    (let [current (.get hedge-budget)
+          next (f (decay-hedge-budget current (time-ms)))]
+      (cond
+       (nil? next) false
+       (.compareAndSet hedge-budget current next) true
+       :else (recur)))))
+
+(defn count-hedge-part []
+  (update-hedge-budget (fn [[parts hedges at]]
+                         [(inc parts) hedges at])))
+
+(defn take-hedge? []
+  (update-hedge-budget (fn [[parts hedges at]]
+                         (when (<= (inc hedges) (* const/default-hedge-max-ratio parts))
+                           [parts (inc hedges) at]))))
+
+(defn hedge-delay [input]
+  (if-let [ms (:hedge-after-ms input)]
+    (long ms)
+    (when (read-boolean-setting input :hedge false)
+      (discover/latency-percentile const/default-hedge-percentile))))
+
+(defn hedge [part input c resolved deadline]
+  ;; returns true if a second request was sent, the budget is taken
+  ;; only when there is another replica to send it to. The second
+  ;; request gets what is left of the part's timeout
+  (let [other (discover/peer-resolve-other (first part) resolved)]
+    (if (and other (take-hedge?))
+      (do
+        (index-stat/update-count index-stat/total "search-many-hedge" 1)
+        (log/debug "hedging" part "from" resolved "to" other)
+        (search-remote-on other part (assoc input :timeout (max 1 (- deadline (time-ms)))) c)
+        true)
+      false)))
+
+(defn await-answer [part c deadline]
+  (let [[v ch] (async/alts!! [c (async/timeout (max 0 (- deadline (time-ms))))])]
+    (if (= ch c)
+      v
+      {:exception (str part " did not answer within its timeout")})))
+
+(defn await-part
+  "deadline is when the part's :timeout runs out, a hedged part does
+  not wait longer than that"
+  [[part input c resolved] hedge-at deadline]
+  (if-not hedge-at
+    (async/<!! c)
+    (let [[v ch] (async/alts!! [c (async/timeout (max 0 (- hedge-at (time-ms))))])]
+      (if (= ch c)
+        v
+        (if (hedge part input c resolved deadline)
+          ;; take the first answer, unless it is an error and
+          ;; the other one can still succeed
+          (let [first-answer (await-answer part c deadline)]
+            (if (:exception first-answer)
+              (await-answer part c deadline)
+              first-answer))
+          (async/<!! c))))))
+
+(defn search-parts [requests]
+  ;; requests is a list of [part input], there is one channel per
+  ;; request so the results stay in the same order
+  (let [t0 (time-ms)
+        sent (into [] (for [[hosts input] requests]
+                        ;; room for the hedged answer, nobody waits for the slower one
+                        (let [c (async/chan 2)]
+                          (count-hedge-part)
+                          [(part-of hosts) input c (search-remote hosts input c)])))
+        hedge-at (when-let [delay (hedge-delay (second (first requests)))]
+                   (+ t0 delay))]
+    (into [] (for [[_ input :as request] sent]
+               (await-part request hedge-at (+ t0 (get input :timeout 1000)))))))
+
+(defn search-many-phases [hosts input ms-start]
+  (let [hosts (into [] hosts)
+        phase-1 (index-search/facet-phase-1-input input)
+        collected (search-parts (for [part hosts] [part phase-1]))
+        refined (index-search/refine-results input
+                                             collected
+                                             (fn [refinements]
+                                               (search-parts (for [[idx labels] refinements]
+                                                               [(nth hosts idx)
+                                                                (index-search/facet-refine-input input labels)]))))]
+    (index-search/reduce-collection (concat collected refined) input ms-start)))
+
+(defn global-term-stats [hosts input]
+  ;; peers that fail here fail (or time out) in the search as well
+  (index-search/merge-term-stats
+   (for [result (search-parts (for [part hosts]
+                                [part (assoc input :global-stats-phase true)]))
+         :when (:term-stats result)]
+     (:term-stats result))))
 
 (defn search-many [hosts input]
-  (let [c (async/chan)
-        ms-start (time-ms)]
-    (doseq [part hosts]
-      (search-remote part input c))
-    (let [collected (into [] (for [part hosts] (async/<!! c)))]
-      (index-search/reduce-collection collected input ms-start))))
+  (let [ms-start (time-ms)]
+    (if (:global-stats-phase input)
+      {:term-stats (global-term-stats hosts input)}
+      (search-many-phases hosts
+                          (if (and (index-search/global-stats? input) (not (:term-stats input)))
+                            (assoc input :term-stats (global-term-stats hosts input))
+                            input)
+                          ms-start))))
+
+(defn client-response [input result]
+  (if (:peer-request input)
+    result
+    (index-search/strip-cursors result)))
 
 (defn stat []
   {:index (index-directory/index-stat)
    :alias @index-directory/alias*
    :identifier @index-directory/identifier*
    :discover-hosts @discover/discover-hosts*
-   :peers @discover/peers*
+   :peers (discover/peers-stat)
    :timer @timer/time*
+   :executors (executor/executor-stat)
+   :redis-cache (into {} (RedisBlockCache/stats))
+   :analyzers (analyzer/analyzer-stat)
+   :query-cache (query/query-cache-stat)
+   :filter-cache (filter-cache/filter-cache-stat)
+   :result-cache (index-search/result-cache-stat)
+   :term-stats-cache (index-search/term-stats-cache-stat)
+   :expr-cache (cached-eval/expr-cache-stat)
    :mem {:heap-size (.totalMemory (Runtime/getRuntime))
          :heap-free (.freeMemory (Runtime/getRuntime))
          :heap-used (- (.totalMemory (Runtime/getRuntime)) (.freeMemory (Runtime/getRuntime)))
@@ -107,20 +283,47 @@
              "/_state/ro_deep_merge" (state/ro-deep-merge input)
              "/_state/ro_rename_key" (state/ro-rename-key (:from_key input) (:to_key input))
 
-             (index-search/search input))
-      :put (search-many (:hosts input) (dissoc input :hosts))
+             (client-response input (index-search/search input)))
+      :put (client-response input (search-many (:hosts input) (dissoc input :hosts)))
       :patch (discover/merge-discover-hosts (get input :discover-hosts {}))
       (throw (Throwable. "unexpected method" method)))))
 
+(defn read-request [request]
+  (cond
+   (binary? (get-in request [:headers "content-type"])) (BinaryCodec/decode ^java.io.InputStream (:body request))
+   (= :post (:request-method request)) (json-stream/read-stream (:body request))
+   :else (json/read-str (slurp-or-default (:body request) "{}") :key-fn keyword)))
+
+(defn write-response [request result]
+  ;; peers ask for the binary encoding, everybody else gets json
+  (if (binary? (get-in request [:headers "accept"]))
+    {:status 200
+     :headers {"Content-Type" BinaryCodec/CONTENT_TYPE}
+     :body (ByteArrayInputStream. (BinaryCodec/encode result))}
+    {:status 200
+     :headers {"Content-Type" "application/json"}
+     :body (json-stream/json-chunks result)}))
+
 (defn handler [request]
   (let [t0 (time-ms)
         stat-key (str "http-" (lower-case (as-str (:request-method request))))]
     (try
-      {:status 200
-       :headers {"Content-Type" "application/json"}
-       :body (json/write-str (work (:request-method request)
-                                   (:uri request)
-                                   (json/read-str (slurp-or-default (:body request) "{}") :key-fn keyword)))}
+      (write-response request
+                      ;; the request is not bound to a local, the
+                      ;; documents of a store are streamed and must not
+                      ;; be held on to
+                      (json-stream/with-spools
+                        (work (:request-method request)
+                              (:uri request)
+                              (read-request request))))
+      (catch RejectedExecutionException e
+        (do
+          (index-stat/update-count index-stat/total (str stat-key "-rejected") 1)
+          (log/debug request "-> rejected" (.getMessage e))
+          {:status 429
+           :headers {"Content-Type" "application/json"
+                     "Retry-After" (str const/default-retry-after-seconds)}
+           :body (json/write-str {:exception (str "too busy, rejected: " (.getMessage e))})}))
       (catch Throwable e
         (let [ex (ex-str e)]
           (index-stat/update-error index-stat/total stat-key)
@@ -171,6 +374,102 @@
    ["-o" "--hosts host:port,host:port" "initial hosts that will be queried for identifiers for auto-resolve"
     :id :discover-hosts
     :default ""]
+   ["-w" "--commit-window-ms NUM-IN-MS" "wait up to N ms for more writes to the same shard before doing the group commit"
+    :id :commit-window-ms
+    :default const/default-commit-window-ms
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(>= % 0) "Must be a number >= 0"]]
+   ["-W" "--commit-window-writes NUM" "commit before the window expires if N writes are waiting for it"
+    :id :commit-window-writes
+    :default const/default-commit-window-writes
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   ["-n" "--nrt" "open the searchers from the live writers (near-real-time), for all shards"
+    :id :nrt
+    :default false]
+   [nil "--nrt-max-stale-ms NUM-IN-MS" "near-real-time searchers are reopened at least every N ms"
+    :id :nrt-max-stale-ms
+    :default const/default-nrt-max-stale-ms
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--nrt-min-stale-ms NUM-IN-MS" "near-real-time searchers are reopened within N ms when someone waits for a generation"
+    :id :nrt-min-stale-ms
+    :default const/default-nrt-min-stale-ms
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--search-threads NUM" "number of threads searching shards"
+    :id :search-threads
+    :default const/default-search-threads
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--search-queue NUM" "max number of shard searches waiting for a thread, after that requests are rejected with 429"
+    :id :search-queue
+    :default const/default-search-queue
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--parallel-segments" "search the segments of a shard in parallel on the segment pool (requests can override it with \"parallel-segments\")"
+    :id :parallel-segments
+    :default false]
+   [nil "--segment-threads NUM" "number of threads searching slices of a shard with --parallel-segments, also the number of slices per shard"
+    :id :segment-threads
+    :default const/default-segment-threads
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--store-threads NUM" "number of threads storing into shards"
+    :id :store-threads
+    :default const/default-store-threads
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--store-queue NUM" "max number of shard stores waiting for a thread, after that requests are rejected with 429"
+    :id :store-queue
+    :default const/default-store-queue
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--redis-cache-mb NUM" "size of the block cache shared by all redis backed shards"
+    :id :redis-cache-mb
+    :default const/default-redis-cache-mb
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(>= % 0) "Must be a number >= 0"]]
+   [nil "--analyzer-cache-size NUM" "number of distinct analyzer definitions kept built"
+    :id :analyzer-cache-size
+    :default const/default-analyzer-cache-size
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--query-cache-size NUM" "number of parsed queries kept"
+    :id :query-cache-size
+    :default const/default-query-cache-size
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--filter-cache-mb NUM" "size of the per segment filter cache shared by all shards"
+    :id :filter-cache-mb
+    :default const/default-filter-cache-mb
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(>= % 0) "Must be a number >= 0"]]
+   [nil "--result-cache-mb NUM" "size of the search response cache, 0 disables it (requests can skip it with \"cache\": false)"
+    :id :result-cache-mb
+    :default const/default-result-cache-mb
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(>= % 0) "Must be a number >= 0"]]
+   [nil "--term-stats-cache-size NUM" "number of per shard term/field statistics kept for \"global-stats\" searches"
+    :id :term-stats-cache-size
+    :default const/default-term-stats-cache-size
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--expr-cache-size NUM" "number of compiled clj expressions kept"
+    :id :expr-cache-size
+    :default const/default-expr-cache-size
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--warmup-expressions FILE" "json file with expressions to compile at startup: {\"eval\":[...],\"scorer\":[...]}"
+    :id :warmup-expressions]
+   [nil "--redis-lock-lease-ms NUM" "how long the write lock of a redis backed shard outlives a node that stopped renewing it"
+    :id :redis-lock-lease-ms
+    :default const/default-redis-lock-lease-ms
+    :parse-fn #(Integer/parseInt %)
+    :validate [ #(> % 0) "Must be a number > 0"]]
+   [nil "--json-peers" "send search-many requests to peers as json instead of the binary encoding (for peers running older versions)"
+    :id :json-peers
+    :default false]
    ["-d" "--directory DIRECTORY" "directory that will contain all the indexes"
     :id :directory
     :default const/default-root]])
@@ -197,8 +496,31 @@
     (reset! index-directory/identifier* (keyword (:identifier options)))
     (reset! query/allow-unsafe-queries* (:allow-unsafe-queries options))
     (reset! index-directory/root* (:directory options))
+    (reset! index-directory/commit-window-ms* (:commit-window-ms options))
+    (reset! index-directory/commit-window-writes* (:commit-window-writes options))
+    (reset! index-directory/nrt* (:nrt options))
+    (reset! executor/config* {:search {:threads (:search-threads options)
+                                       :queue (:search-queue options)}
+                              :store {:threads (:store-threads options)
+                                      :queue (:store-queue options)}
+                              :segment {:threads (:segment-threads options)
+                                        :queue const/default-segment-queue}})
+    (reset! index-search/parallel-segments* (:parallel-segments options))
+    (reset! index-directory/nrt-max-stale-ms* (:nrt-max-stale-ms options))
+    (reset! index-directory/nrt-min-stale-ms* (:nrt-min-stale-ms options))
     (reset! log/level* (:verbose options))
     (reset! port* (:port options))
+    (reset! json-peers* (:json-peers options))
+    (RedisBlockCache/setCapacity (* 1024 1024 (long (:redis-cache-mb options))))
+    (analyzer/set-analyzer-cache-size (:analyzer-cache-size options))
+    (query/set-query-cache-size (:query-cache-size options))
+    (filter-cache/set-capacity (:filter-cache-mb options))
+    (index-search/set-result-cache-mb (:result-cache-mb options))
+    (index-search/set-term-stats-cache-size (:term-stats-cache-size options))
+    (cached-eval/set-expr-cache-size (:expr-cache-size options))
+    (when-let [file (:warmup-expressions options)]
+      (cached-eval/warmup file))
+    (set! RedisLock/LEASE_MS (long (:redis-lock-lease-ms options)))
     (index-directory/initial-read-alias-file)
     (index-stat/initial-setup)
 
@@ -11,7 +11,9 @@
   (:require [clojure.core.async :as async])
   (:require [clojure.data.json :as json])
   (:require [clojure.java.io :as io])
-  (:import (java.net URL)))
+  (:import (java.net URL)
+           (java.util Arrays)
+           (java.util.concurrent.atomic AtomicLong)))
 
 (def acceptable-discover-time-diff* (atom const/default-acceptable-discover-time-diff))
 (def next-gc* (atom 0))
@@ -19,6 +21,15 @@
 (def gc-interval* (atom 0))
 (def peers* (atom {}))
 
+;; {host {:ewma ms :in-flight n :updated time-ms :requests n :errors n}}
+;; filled by search-remote, used to prefer fast and not busy replicas,
+;; pruned every discovery round (see prune-host-load)
+(def host-load* (atom {}))
+
+;; last N successful response times, for the adaptive hedge delay
+(def ^"[J" latencies (long-array const/default-latency-samples))
+(def latency-pos (AtomicLong. 0))
+
 (defn validate-discover-url [x]
   (let [url (URL. ^String (as-str x))]
     (join "://" [(.getProtocol url) (join ":" [(.getHost url) (.getPort url)])])))
@@ -32,17 +43,96 @@
     (not (< (abs diff) 2)))) ;; regardless if we are 2 seconds before gc
                              ;; or 2 seconds after, try to skip this host
 
+(defn request-start [host]
+  (swap! host-load* update-in [host :in-flight] (fnil inc 0)))
+
+(defn latency-percentile [p]
+  ;; nil until there are enough samples to say something
+  (let [n (int (min (.get ^AtomicLong latency-pos) (alength latencies)))]
+    (when (>= n 20)
+      (let [sorted (Arrays/copyOf latencies n)]
+        (Arrays/sort sorted)
+        (aget sorted (int (min (dec n) (* p n))))))))
+
+(defn request-end [host took error]
+  (when-not error
+    (aset latencies
+          (int (mod (.getAndIncrement ^AtomicLong latency-pos) (alength latencies)))
+          (long took)))
+  (let [now (time-ms)]
+    (swap! host-load* update-in [host]
+           (fn [state]
+             (let [ewma (:ewma state)]
+               (-> state
+                   (update-in [:in-flight] (fnil dec 1))
+                   (update-in [:requests] (fnil inc 0))
+                   (update-in [:errors] (fnil + 0) (if error 1 0))
+                   (assoc :updated now
+                          :ewma (if ewma
+                                  (+ (* const/default-peer-ewma-alpha took)
+                                     (* (- 1 const/default-peer-ewma-alpha) ewma))
+                                  (double took)))))))))
+
+(defn host-score [host]
+  ;; expected latency * (requests waiting + 1), lower is better.
+  ;; the latency decays with time since the last answer, otherwise a
+  ;; host that was slow once would never be picked again to find out
+  ;; that it recovered
+  (let [state (get @host-load* host)
+        age (- (time-ms) (get state :updated 0))
+        ewma (* (get state :ewma 0)
+                (Math/pow 0.5 (/ age (double const/default-peer-ewma-half-life-ms))))]
+    (* ewma (inc (max 0 (get state :in-flight 0))))))
+
+(defn prune-host-load
+  "drops the load of hosts that have nothing in flight and are not
+  peers any more, or did not answer for default-peer-load-max-age-ms
+  (by then their latency average has decayed to nothing anyway)"
+  [now]
+  (let [peer-hosts (set (mapcat keys (vals @peers*)))]
+    (swap! host-load*
+           (fn [load]
+             (into {} (for [[host state :as entry] load
+                            :when (or (> (get state :in-flight 0) 0)
+                                      (and (contains? peer-hosts host)
+                                           (< (- now (get state :updated now))
+                                              const/default-peer-load-max-age-ms)))]
+                        entry))))))
+
+(defn pick-host [list]
+  ;; power of two choices
+  (if (= 1 (count list))
+    (first (first list))
+    (let [[a b] (take 2 (shuffle list))]
+      (if (<= (host-score (first a)) (host-score (first b)))
+        (first a)
+        (first b)))))
+
 (defn possible-hosts [list]
   (let [rescent (filter rescent? list)
         not-doing-gc (filter not-doing-gc? rescent)]
     (if-not (= 0 (count not-doing-gc))
-      (first (rand-nth not-doing-gc))
+      (pick-host not-doing-gc)
       (do
         (log/debug "found host after ignoring the gcing ones, dump:" list @timer/time* @discover-hosts* @peers*)
         (if (> (count rescent) 0)
-          (first (rand-nth rescent))
+          (pick-host rescent)
           nil)))))
 
+(defn peers-stat []
+  (into {} (for [[identifier hosts] @peers*]
+             [identifier (into {} (for [[host state] hosts]
+                                    [host (merge state
+                                                 (get @host-load* host)
+                                                 {:score (host-score host)})]))])))
+
+(defn peer-resolve-other
+  "another host for the identifier, or nil if there is none"
+  [identifier exclude]
+  (if-let [all-possible ((keyword identifier) @peers*)]
+    (possible-hosts (remove #(= exclude (first %)) all-possible))
+    nil))
+
 (defn peer-resolve [identifier]
   (let [t0 (time-ms)
         resolved (if-let [all-possible ((keyword identifier) @peers*)]
@@ -125,7 +215,8 @@
                                 nil))
                             {})]
         (when updated-peers
-          (reset! peers* (assoc-self-idenfifier updated-peers))))
+          (reset! peers* (assoc-self-idenfifier updated-peers))
+          (prune-host-load (time-ms))))
       (do
         (when (> @gc-interval* 0)
           (attempt-gc))
@@ -141,4 +232,5 @@
             (update-discovery-state host c str-state))
           (doseq [host hosts]
             (async/<!! c))
+          (prune-host-load (time-ms))
           (index-stat/update-took-count index-stat/total "discover" (time-took t0)))))))
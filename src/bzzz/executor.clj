@@ -0,0 +1,120 @@
+(ns bzzz.executor
+  (use bzzz.util)
+  (:require [bzzz.const :as const])
+  (:require [bzzz.index-stat :as index-stat])
+  (:import (java.util ArrayList)
+           (java.util.concurrent ThreadPoolExecutor ThreadPoolExecutor$AbortPolicy TimeUnit ArrayBlockingQueue
+                                 RejectedExecutionException ThreadFactory Future Callable Semaphore)
+           (java.util.concurrent.atomic AtomicLong)))
+
+;; per-shard work runs on fixed size pools with bounded queues, so a
+;; burst of requests is rejected (HTTP 429) instead of spawning
+;; thousands of threads.
+;; the bound is a semaphore with threads + queue permits per pool, every
+;; task holds one until it is done. The permits for all tasks of a request
+;; are taken at once, so a request is either rejected before anything
+;; runs, or all of its tasks are accepted (the executor's own queue has
+;; room for more than the permits, it never rejects them half way).
+(def config* (atom {:search {:threads const/default-search-threads
+                             :queue const/default-search-queue}
+                    :store {:threads const/default-store-threads
+                            :queue const/default-store-queue}
+                    ;; slices of a single shard, see index-search/search-and-collect
+                    :segment {:threads const/default-segment-threads
+                              :queue const/default-segment-queue}}))
+(def executors* (atom {}))
+(def permits* (atom {}))
+
+(defn thread-factory ^ThreadFactory [pool-name]
+  (let [n (AtomicLong. 0)]
+    (reify ThreadFactory
+      (newThread [this r]
+        (doto (Thread. ^Runnable r (str "bzzz-" (as-str pool-name) "-" (.incrementAndGet n)))
+          (.setDaemon true))))))
+
+(defn new-executor ^ThreadPoolExecutor [pool-name {:keys [threads queue]}]
+  (ThreadPoolExecutor. (int threads)
+                       (int threads)
+                       60
+                       TimeUnit/SECONDS
+                       ;; a finished task gives back its permit just
+                       ;; before its thread takes the next one
+                       (ArrayBlockingQueue. (int (+ queue threads)))
+                       (thread-factory pool-name)
+                       (ThreadPoolExecutor$AbortPolicy.)))
+
+(defn get-executor ^ThreadPoolExecutor [pool-name]
+  (if-let [executor (get @executors* pool-name)]
+    executor
+    (locking executors*
+      (if-let [executor (get @executors* pool-name)]
+        executor
+        (let [config (need pool-name @config* (str "unknown executor " pool-name))
+              executor (new-executor pool-name config)]
+          (swap! permits* assoc pool-name (Semaphore. (int (+ (:threads config) (:queue config)))))
+          (swap! executors* assoc pool-name executor)
+          executor)))))
+
+(defn threads [pool-name]
+  (int (:threads (need pool-name @config* (str "unknown executor " pool-name)))))
+
+(defn acquire ^Semaphore [pool-name n]
+  (get-executor pool-name)
+  (let [^Semaphore permits (get @permits* pool-name)]
+    (when-not (.tryAcquire permits (int n))
+      (index-stat/update-count index-stat/total (str "executor-" (as-str pool-name) "-rejected") 1)
+      (throw (RejectedExecutionException. (str (as-str pool-name) " pool is full, " n " tasks were not accepted"))))
+    permits))
+
+(defn submit-acquired ^Future [pool-name ^Semaphore permits f]
+  (.submit (get-executor pool-name)
+           ^Callable (bound-fn* (fn []
+                                  (try
+                                    (f)
+                                    (finally
+                                      (.release permits)))))))
+
+(defn submit ^Future [pool-name f]
+  (let [permits (acquire pool-name 1)]
+    (try
+      (submit-acquired pool-name permits f)
+      (catch RejectedExecutionException e
+        (.release permits)
+        (throw e)))))
+
+(defn submit-all-if
+  "runs every function from fns on the pool if condition is true,
+  otherwise calls them in the current thread. The pool takes all of
+  them or none: if it does not have room for every function, nothing is
+  submitted and RejectedExecutionException is thrown"
+  [pool-name condition fns]
+  (if-not condition
+    (into [] (for [f fns] (f)))
+    (let [fns (vec fns)
+          permits (acquire pool-name (count fns))
+          submitted (ArrayList.)]
+      (try
+        (doseq [f fns]
+          (.add submitted (submit-acquired pool-name permits f)))
+        (into [] submitted)
+        (catch RejectedExecutionException e
+          ;; only after shutdown, the submitted ones give back their
+          ;; permits when they are done
+          (.release permits (int (- (count fns) (.size submitted))))
+          (throw e))))))
+
+(defn executor-stat []
+  (into {} (for [[pool-name ^ThreadPoolExecutor executor] @executors*]
+             [pool-name {:active-threads (.getActiveCount executor)
+                         :pool-size (.getPoolSize executor)
+                         :max-pool-size (.getMaximumPoolSize executor)
+                         :queue-depth (.size (.getQueue executor))
+                         :available-permits (.availablePermits ^Semaphore (get @permits* pool-name))
+                         :completed (.getCompletedTaskCount executor)}])))
+
+(defn shutdown []
+  (locking executors*
+    (doseq [[pool-name ^ThreadPoolExecutor executor] @executors*]
+      (.shutdown executor))
+    (reset! executors* {})
+    (reset! permits* {})))
@@ -0,0 +1,30 @@
+(ns bzzz.filter-cache
+  (use bzzz.util)
+  (:import (org.apache.lucene.search Query Filter QueryWrapperFilter)
+           (bzzz.java.query CachedFilter FilterCache Helper TermPayloadClojureScoreQuery)))
+
+;; filter clauses (filtered's filter, constant-score's query) are
+;; cached per segment by their canonical json, so a filter repeated in
+;; many requests is computed once per segment (see FilterCache)
+
+(defn cacheable-filter? [^Query query]
+  ;; TermPayloadClojureScoreQuery keeps per request state while scoring,
+  ;; a cached doc id set would skip it
+  (empty? (Helper/collect_possible_subqueries query nil TermPayloadClojureScoreQuery)))
+
+(defn cached-filter
+  "returns a cached Filter for input (already parsed into query), or nil
+  if it can not be cached"
+  ^Filter [input ^Query query analyzer]
+  (when (cacheable-filter? query)
+    (CachedFilter. (canonical-json input) analyzer (QueryWrapperFilter. query))))
+
+(defn query->filter ^Filter [input ^Query query analyzer]
+  (or (cached-filter input query analyzer)
+      (QueryWrapperFilter. query)))
+
+(defn set-capacity [mb]
+  (FilterCache/setCapacity (* 1024 1024 (long mb))))
+
+(defn filter-cache-stat []
+  (into {} (FilterCache/stats)))
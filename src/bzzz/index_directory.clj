@@ -9,16 +9,18 @@
   (:require [bzzz.index-stat :as stat])
   (:require [bzzz.log :as log])
   (:require [clojure.java.io :as io])
-  (:import (java.io StringReader File Writer FileNotFoundException)
+  (:import (java.io StringReader File Writer FileNotFoundException IOException)
            (java.lang OutOfMemoryError)
-           (bzzz.java.store RedisDirectory)
+           (java.util.concurrent.atomic AtomicLong)
+           (bzzz.java.store RedisDirectory RedisLockFactory TrackingMMapDirectory)
            (redis.clients.jedis JedisPool)
            (org.apache.lucene.analysis Analyzer)
            (org.apache.lucene.facet.taxonomy.directory DirectoryTaxonomyWriter DirectoryTaxonomyReader)
            (org.apache.lucene.facet.taxonomy SearcherTaxonomyManager SearcherTaxonomyManager$SearcherAndTaxonomy)
-           (org.apache.lucene.index IndexWriter IndexReader IndexWriterConfig DirectoryReader)
-           (org.apache.lucene.search Query ScoreDoc SearcherManager IndexSearcher)
-           (org.apache.lucene.store NIOFSDirectory Directory NoSuchDirectoryException)))
+           (org.apache.lucene.index IndexWriter IndexReader IndexWriterConfig DirectoryReader TrackingIndexWriter)
+           (org.apache.lucene.search Query ScoreDoc SearcherManager IndexSearcher ControlledRealTimeReopenThread)
+           (org.apache.lucene.store NIOFSDirectory NRTCachingDirectory Directory NoSuchDirectoryException
+                                   AlreadyClosedException)))
 
 (declare use-searcher)
 (declare use-writer)
@@ -35,6 +37,13 @@
 (def identifier* (atom default-identifier))
 (def write-refresh-lock* (atom {}))
 (def name->manager* (atom {}))
+(def name->writer* (atom {}))
+(def commit-window-ms* (atom default-commit-window-ms))
+(def commit-window-writes* (atom default-commit-window-writes))
+(def nrt* (atom false))
+(def nrt-max-stale-ms* (atom default-nrt-max-stale-ms))
+(def nrt-min-stale-ms* (atom default-nrt-min-stale-ms))
+(def name->reopen* (atom {}))
 (def unacceptable-name-pattern (re-pattern "[^a-zA-Z_0-9-:]"))
 (def shard-suffix "-shard-")
 (def shard-suffix-sre (str ".*" shard-suffix "\\d+"))
@@ -93,13 +102,17 @@
   (try
     (.mkdir path-prefix)))
 
+(defn shard-conf-file ^File [^File path name]
+  ;; the taxonomy directory is inside the shard's, and uses its conf
+  (if (.endsWith (.toString path) "_taxo__")
+    (io/file (.getParentFile path) name)
+    (io/file path name)))
+
 (defn try-redis [^File path]
   (locking redis*
     (if-let [pool (get @redis* path)]
       pool
-      (let [f (if (.endsWith (.toString path) "_taxo__")
-                (io/file (.getParentFile path) "redis.conf")
-                (io/file path "redis.conf"))]
+      (let [f (shard-conf-file path "redis.conf")]
         (if (.exists f)
           (let [conf (jr (slurp f))
                 pool (JedisPool. ^String (:host conf) (int-or-parse (:port conf)))]
@@ -107,6 +120,41 @@
             pool)
           nil)))))
 
+(defn nrt-conf [index]
+  ;; near-real-time is enabled for all shards with --nrt, or per shard
+  ;; by putting nrt.conf (like redis.conf) in the shard's directory:
+  ;; {"max-stale-ms": 1000, "min-stale-ms": 25}
+  (let [f (io/file (root-identifier-path) (acceptable-index-name index) "nrt.conf")
+        defaults {:max-stale-ms @nrt-max-stale-ms*
+                  :min-stale-ms @nrt-min-stale-ms*}]
+    (if (.exists f)
+      (merge defaults (jr (slurp-or-default f "{}")))
+      (if @nrt*
+        defaults
+        nil))))
+
+(defn directory-conf [^File path]
+  ;; directory.conf in the shard's directory (like redis.conf) picks the
+  ;; implementation: {"type": "mmap"} or {"type": "niofs"} (the default),
+  ;; "nrt-cache-mb" wraps it in a NRTCachingDirectory that keeps newly
+  ;; flushed segments smaller than "nrt-merge-mb" in memory
+  (let [f (shard-conf-file path "directory.conf")]
+    (if (.exists f)
+      (jr (slurp-or-default f "{}"))
+      {})))
+
+(defn new-fs-directory ^Directory [^File dir]
+  (let [conf (directory-conf dir)
+        ^Directory fs (case (as-str (get conf :type "niofs"))
+                        "mmap" (TrackingMMapDirectory. dir)
+                        "niofs" (NIOFSDirectory. dir)
+                        (throw (Throwable. (str dir " unknown directory type: " (:type conf)))))]
+    (if-let [cache-mb (:nrt-cache-mb conf)]
+      (NRTCachingDirectory. fs
+                            (double (get conf :nrt-merge-mb default-nrt-merge-mb))
+                            (double cache-mb))
+      fs)))
+
 (defn new-index-directory ^Directory [^File path-prefix name]
   (try-create-prefix path-prefix)
   (let [index-name (acceptable-index-name name)
@@ -114,7 +162,19 @@
         redis (try-redis dir)]
     (if redis
       (RedisDirectory. index-name redis)
-      (NIOFSDirectory. dir))))
+      (new-fs-directory dir))))
+
+(defn directory-stat [^Directory dir]
+  (let [cached (when (instance? NRTCachingDirectory dir)
+                 (.ramBytesUsed ^NRTCachingDirectory dir))
+        dir (if (instance? NRTCachingDirectory dir)
+              (.getDelegate ^NRTCachingDirectory dir)
+              dir)]
+    (-> {:type (.getSimpleName (class dir))}
+        (conj-if (when (instance? TrackingMMapDirectory dir)
+                   {:mapped-bytes (.mappedBytes ^TrackingMMapDirectory dir)}))
+        (conj-if (when cached
+                   {:nrt-cached-bytes cached})))))
 
 (defn new-index-writer ^IndexWriter [name ^Analyzer analyzer]
   (IndexWriter. (new-index-directory (root-identifier-path) name)
@@ -131,6 +191,18 @@
                             (new-index-directory (taxo-dir-prefix name) (str "__" name "_taxo__"))
                             nil))
 
+(defn new-nrt-searcher-manager ^SearcherTaxonomyManager [^IndexWriter writer ^DirectoryTaxonomyWriter taxo]
+  (SearcherTaxonomyManager. writer true nil taxo))
+
+(defn new-reopen-thread ^ControlledRealTimeReopenThread [name ^TrackingIndexWriter tracking ^SearcherTaxonomyManager manager conf]
+  (doto (ControlledRealTimeReopenThread. tracking
+                                         manager
+                                         (/ (double (int-or-parse (:max-stale-ms conf))) 1000)
+                                         (/ (double (int-or-parse (:min-stale-ms conf))) 1000))
+    (.setName (str "nrt-reopen-" name))
+    (.setDaemon true)
+    (.start)))
+
 (defn sharded [index x-shard]
   (let [shard (int-or-parse x-shard)]
     (str (as-str index) shard-suffix (str shard))))
@@ -138,7 +210,7 @@
 (defn reset-search-managers []
   (doseq [[name manager] @name->manager*]
     (log/info "\tclosing: " name " " manager)
-    (try-close-manager manager))
+    (try-close-manager name manager))
   (reset! name->manager* {}))
 
 (defn use-searcher [index refresh callback]
@@ -184,12 +256,29 @@
           (log-close-err (.getDirectory taxo) e)
           (DirectoryTaxonomyWriter/unlock (.getDirectory taxo)))))))
 
-(defn try-close-manager [^SearcherTaxonomyManager manager]
+(defn try-close-manager [index ^SearcherTaxonomyManager manager]
   (try
+    (when-let [^ControlledRealTimeReopenThread reopen (get @name->reopen* index)]
+      (swap! name->reopen* dissoc index)
+      (.close reopen))
     (.close manager)
     (catch Exception e
       (log/warn (as-str e)))))
 
+(defn nrt? [index]
+  (contains? @name->reopen* index))
+
+(defn close-nrt-manager [index]
+  ;; the nrt manager is opened on the writer, so it has to go with it
+  ;; (not locking name->manager* because get-manager creates writers while holding it)
+  (when (nrt? index)
+    (when-let [manager (get @name->manager* index)]
+      (swap! name->manager* (fn [current]
+                              (if (identical? manager (get current index))
+                                (dissoc current index)
+                                current)))
+      (try-close-manager index manager))))
+
 (defn get-write-refresh-lock [index]
   (get-lock-obj write-refresh-lock* index))
 
@@ -207,42 +296,174 @@
                                    ~stat-name
                                    (time-took t0#)))))))
 
-(defn use-writer [index analyzer force-merge callback]
-  (locking-took (get-write-refresh-lock index)
-                index
-                "use-writer"
-                (let [writer (new-index-writer index analyzer)
-                      taxo (new-taxo-writer index)]
-                  (try
-                    (do
-                      (.prepareCommit writer)
-                      (.prepareCommit taxo)
-                      (let [rc (callback ^IndexWriter writer ^DirectoryTaxonomyWriter taxo)
-                            force-merge (int-or-parse force-merge)]
-                        (let [t0 (time-ms)]
-                          (.commit taxo)
-                          (.commit writer)
-                          (stat/update-took-count index "use-writer-commit" (time-took t0)))
-                        (if (> force-merge 0)
-                          (.forceMerge writer force-merge))
-                        rc))
-                    (catch Exception e
-                      (do
-                        (stat/update-error index "use-writer")
-                        (if-not (instance? OutOfMemoryError e)
-                          (do
-                            (.rollback taxo)
-                            (.rollback writer)))
-                        (throw e)))
-                    (finally
-                      (do
-                        (safe-close-taxo taxo)
-                        (safe-close-writer writer)))))))
+(defn new-writer-entry [index]
+  ;; one IndexWriter/DirectoryTaxonomyWriter pair per shard, kept open
+  ;; until shutdown (or until the shard directory disappears)
+  ;;
+  ;; requested/committed are write tickets, every use-writer call takes
+  ;; one after its callback is done, and the ticket is acknowledged only
+  ;; after a commit that started after it was taken
+  (let [writer (new-index-writer index (parse-analyzer nil))]
+    {:writer writer
+     :tracking (TrackingIndexWriter. writer)
+     :taxo (new-taxo-writer index)
+     :nrt (nrt-conf index)
+     :commit-lock (Object.)
+     :window (Object.)
+     :requested (AtomicLong. 0)
+     :committed (AtomicLong. 0)
+     :broken (atom false)}))
+
+(defn close-writer-entry [index {:keys [writer taxo]}]
+  (log/info "\tclosing writer: " index " " writer)
+  (safe-close-taxo taxo)
+  (safe-close-writer writer))
+
+(defn drop-writer [index entry]
+  (locking name->writer*
+    (when (identical? entry (get @name->writer* index))
+      (swap! name->writer* dissoc index)
+      (close-nrt-manager index))))
+
+(defn close-moved-writers []
+  ;; the shard directory was renamed or deleted underneath us, the writer
+  ;; still holds the lock on the old files so it has to go before someone
+  ;; opens a new writer on them
+  (doseq [[index entry] @name->writer*]
+    (when-not (.exists (io/file (root-identifier-path) (acceptable-index-name index)))
+      (drop-writer index entry)
+      (close-writer-entry index entry))))
+
+(defn get-writer [index]
+  (if-let [entry (get @name->writer* index)]
+    entry
+    (locking name->writer*
+      (if-let [entry (get @name->writer* index)]
+        entry
+        (do
+          (close-moved-writers)
+          (let [entry (new-writer-entry index)]
+            (swap! name->writer* assoc index entry)
+            entry))))))
+
+(defn reset-writers []
+  (locking name->writer*
+    (doseq [[index entry] @name->writer*]
+      (locking (:commit-lock entry)
+        (close-writer-entry index entry)))
+    (reset! name->writer* {})))
+
+(defn rollback-writer [index entry]
+  ;; rollback discards everything that is not yet committed, including
+  ;; the documents of other writers that are waiting for the same group
+  ;; commit, they will see :broken and fail instead of getting an ack
+  (locking (:commit-lock entry)
+    (when-not @(:broken entry)
+      (reset! (:broken entry) true)
+      (drop-writer index entry)
+      (try
+        (.rollback ^DirectoryTaxonomyWriter (:taxo entry))
+        (.rollback ^IndexWriter (:writer entry))
+        (catch Throwable e
+          (log/warn (str index " rollback exception: " (ex-str e)))
+          (close-writer-entry index entry))))))
+
+(defn pending-writes [{:keys [^AtomicLong requested ^AtomicLong committed]}]
+  (- (.get requested) (.get committed)))
+
+(defn wait-for-commit-window [{:keys [window] :as entry}]
+  (let [deadline (+ (time-ms) @commit-window-ms*)]
+    (locking window
+      (loop []
+        (let [left (- deadline (time-ms))]
+          (when (and (> left 0)
+                     (< (pending-writes entry) @commit-window-writes*))
+            (.wait ^Object window left)
+            (recur)))))))
+
+(defn write-lock-held? [^Directory directory]
+  ;; only redis locks have a lease that can run out under us
+  (let [lock-factory (.getLockFactory directory)]
+    (or (not (instance? RedisLockFactory lock-factory))
+        (.isHeld ^RedisLockFactory lock-factory IndexWriter/WRITE_LOCK_NAME))))
+
+(defn group-commit [index entry force-merge]
+  (let [{:keys [^IndexWriter writer ^DirectoryTaxonomyWriter taxo commit-lock window
+                ^AtomicLong requested ^AtomicLong committed broken]} entry
+        ticket (.incrementAndGet requested)]
+    (when (>= (pending-writes entry) @commit-window-writes*)
+      (locking window
+        (.notifyAll ^Object window)))
+    (locking-took commit-lock
+                  index
+                  "use-writer-group-commit"
+                  (when (< (.get committed) ticket)
+                    (if @broken
+                      (throw (Throwable. (str index " writer was rolled back, documents were not committed"))))
+                    (wait-for-commit-window entry)
+                    ;; another node can own the shard once our lease ran
+                    ;; out, so these documents must not be committed
+                    (when-not (and (write-lock-held? (.getDirectory writer))
+                                   (write-lock-held? (.getDirectory taxo)))
+                      (log/warn index "lost its write lock, rolling back")
+                      (rollback-writer index entry)
+                      (throw (Throwable. (str index " lost its write lock, documents were not committed"))))
+                    (locking-took (get-write-refresh-lock index)
+                                  index
+                                  "use-writer-commit"
+                                  (let [covered (.get requested)]
+                                    (.commit taxo)
+                                    (.commit writer)
+                                    (stat/update-count index "use-writer-group-commit-writes" (- covered (.get committed)))
+                                    (.set committed covered))))
+                  (when (> force-merge 0)
+                    (.forceMerge writer force-merge)
+                    (.commit writer)))))
+
+(defn writer-failed?
+  "true if e left the writer unusable (or lost what it buffered), then
+  nothing that is not committed can be committed any more"
+  [^IndexWriter writer ^Throwable e]
+  (or (instance? OutOfMemoryError e)
+      (instance? IOException e)
+      (instance? AlreadyClosedException e)
+      (try
+        (.numDocs writer)
+        false
+        (catch AlreadyClosedException _
+          true))))
+
+(defn use-writer [index force-merge callback]
+  ;; the writer is shared, so the callback should not fail half way:
+  ;; documents it added before it failed are committed by the next group
+  ;; commit. Callers validate their documents before calling it, and only
+  ;; failures of the writer itself roll it back (that fails every write
+  ;; waiting for the group commit)
+  (let [t0 (time-ms)
+        entry (get-writer index)]
+    (try
+      (let [rc (callback (:writer entry) (:taxo entry))]
+        (group-commit index entry (int-or-parse force-merge))
+        rc)
+      (catch Throwable e
+        (do
+          (stat/update-error index "use-writer")
+          (when (writer-failed? (:writer entry) e)
+            (rollback-writer index entry))
+          (throw e)))
+      (finally
+        (stat/update-took-count index "use-writer" (time-took t0))))))
 
+(defn writer-generation [index]
+  ;; token that can be sent back with a search as {:generation {shard token}}
+  ;; the change is visible in searchers opened after the token was taken
+  (let [{:keys [^TrackingIndexWriter tracking nrt]} (get-writer index)]
+    (when nrt
+      (.getAndIncrementGeneration tracking))))
 
 (defn use-writer-all [index callback]
   (doseq [name (index-name-matching index)]
-    (use-writer name nil 1 callback)))
+    (use-writer name 1 callback)))
 
 (defn bootstrap-indexes []
   (try
@@ -269,8 +490,13 @@
         ;; to avoid a race just use the index name (including creating empty index)
         ;; at the very beginning, and also setup some basic stats for it
         (do
-          (use-writer index nil 0 (fn [^IndexWriter writer ^DirectoryTaxonomyWriter taxo]))
-          (let [created-manager (new-searcher-manager index)]
+          (use-writer index 0 (fn [^IndexWriter writer ^DirectoryTaxonomyWriter taxo]))
+          (let [{:keys [writer taxo tracking nrt]} (get-writer index)
+                created-manager (if nrt
+                                  (new-nrt-searcher-manager writer taxo)
+                                  (new-searcher-manager index))]
+            (when nrt
+              (swap! name->reopen* assoc index (new-reopen-thread index tracking created-manager nrt)))
             (swap! name->manager* assoc index created-manager)
             (stat/get-statistics index)
             created-manager))))))
@@ -278,21 +504,40 @@
 (defn refresh-single-searcher-manager [index ^SearcherTaxonomyManager manager]
   (log/debug "refreshing: " index " " manager)
   (try
-    (locking-took (get-write-refresh-lock index)
-                  index
-                  "refresh-search-managers"
-                  (.maybeRefresh manager))
+    (if (nrt? index)
+      ;; opened from the writer, no need to lock out the commits
+      (.maybeRefreshBlocking manager)
+      (locking-took (get-write-refresh-lock index)
+                    index
+                    "refresh-search-managers"
+                    (.maybeRefresh manager)))
     (catch Throwable e
       (do
         (log/info (str index " refresh exception, closing it. Exception: " (ex-str e)))
-        (try-close-manager manager)
+        (try-close-manager index manager)
         (swap! name->manager* dissoc index)))))
 
+(defn wait-for-generation [index generation timeout]
+  (if-let [^ControlledRealTimeReopenThread reopen (get @name->reopen* index)]
+    (when-not (.waitForGeneration reopen (long-or-parse generation) (int-or-parse timeout))
+      (throw (Throwable. (str index " timed out waiting for generation " generation))))
+    ;; not a near-real-time shard, the write was committed, so
+    ;; refreshing is enough to see it
+    (refresh-single-searcher-manager index (get-manager index false))))
+
+(defn refresh-search-manager
+  "refreshes only the shards of index, without bootstrapping the other
+  indexes on disk"
+  [index]
+  (doseq [name (index-name-matching (resolve-alias index))]
+    (get-manager name true)))
+
 (defn refresh-search-managers []
   (let [t0 (time-ms)]
     (bootstrap-indexes)
     (doseq [[index ^SearcherTaxonomyManager manager] @name->manager*]
-      (refresh-single-searcher-manager index manager))
+      (when-not (nrt? index)
+        (refresh-single-searcher-manager index manager)))
     (stat/update-took-count stat/total "refresh-search-managers" (time-took t0))
     (log/debug "refreshing took" (time-took t0))))
 
@@ -300,6 +545,7 @@
   (locking name->manager*
     (log/info "executing shutdown hook, current mapping: " @name->manager*)
     (reset-search-managers)
+    (reset-writers)
     (log/info "mapping after cleanup: " @name->manager*)))
 
 (defn index-stat []
@@ -312,7 +558,9 @@
                                       :searcher {:to-string (.toString searcher)
                                                  :sim (.toString (.getSimilarity searcher))}
                                       :stat (stat/get-statistics name)
-                                      :manager {:to-string (.toString manager)}
+                                      :directory (directory-stat (.directory ^DirectoryReader reader))
+                                      :manager {:to-string (.toString manager)
+                                                :nrt (nrt? name)}
                                       :reader {:to-string (.toString reader)
                                                :leaves (count (.leaves reader))
                                                :refcnt (.getRefCount reader)
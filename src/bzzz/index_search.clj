@@ -7,9 +7,17 @@
   (use bzzz.index-facet-common)
   (use bzzz.index-directory)
   (use bzzz.index-spatial)
+  (:require [bzzz.executor :as executor])
   (:require [bzzz.index-stat :as stat])
   (:require [bzzz.log :as log])
   (:import (java.io StringReader)
+           (java.util PriorityQueue List)
+           (java.util.concurrent ExecutionException RejectedExecutionException)
+           (java.util.concurrent.atomic AtomicLong)
+           (com.googlecode.concurrentlinkedhashmap ConcurrentLinkedHashMap ConcurrentLinkedHashMap$Builder Weigher)
+           (org.apache.lucene.facet.taxonomy SearcherTaxonomyManager SearcherTaxonomyManager$SearcherAndTaxonomy)
+           (org.apache.lucene.index DirectoryReader AtomicReader AtomicReaderContext ReaderUtil FieldInfo FieldInfo$DocValuesType)
+           (org.apache.lucene.search FieldCache)
            (org.apache.lucene.spatial.query SpatialOperation SpatialArgs)
            (org.apache.lucene.expressions.js JavascriptCompiler)
            (org.apache.lucene.expressions Expression SimpleBindings)
@@ -18,33 +26,83 @@
            (org.apache.lucene.facet.taxonomy.directory DirectoryTaxonomyReader)
            (org.apache.lucene.analysis Analyzer TokenStream)
            (org.apache.lucene.document Document)
-           (org.apache.lucene.search Filter)
+           (org.apache.lucene.search Filter FilteredQuery Weight TermStatistics CollectionStatistics)
+           (org.apache.lucene.index TermContext)
+           (java.util HashSet)
+           (bzzz.java.query SliceSearcher Helper)
            (org.apache.lucene.search.highlight Highlighter QueryScorer
                                                SimpleHTMLFormatter TextFragment)
            (org.apache.lucene.index IndexReader Term IndexableField)
+           (org.apache.lucene.util BytesRef)
            (org.apache.lucene.search Query ScoreDoc SearcherManager IndexSearcher FieldDoc TopFieldDocs
                                      Explanation Collector TopScoreDocCollector TopDocs
                                      TopDocsCollector MultiCollector TopFieldCollector FieldValueFilter
                                      SortField Sort SortField$Type )))
 
+(defn fields-to-load
+  "the stored fields needed for only-fields and the highlighted fields,
+  nil means all of them"
+  [only-fields highlight]
+  (when only-fields
+    (into #{} (concat (for [[k v] only-fields :when v] (as-str k))
+                      (map as-str (:fields highlight))))))
+
+(defn load-document ^Document [^IndexSearcher searcher doc-id to-load]
+  ;; with a field set lucene's visitor skips the other stored fields
+  ;; instead of building them, without any there is nothing to read
+  (cond
+   (nil? to-load) (.doc searcher (int doc-id))
+   (empty? to-load) (Document.)
+   :else (.doc searcher (int doc-id) ^java.util.Set to-load)))
+
+(defn doc-value [^AtomicReader reader field doc]
+  ;; single valued numeric and untokenized fields that have doc values,
+  ;; other fields are skipped: the field cache would uninvert them, and
+  ;; keep the whole column on the heap because of one request
+  (when-let [^FieldInfo info (.fieldInfo (.getFieldInfos reader) ^String field)]
+    (when (and (.hasDocValues info)
+               (.get (.getDocsWithField FieldCache/DEFAULT reader field) doc))
+      (condp = (.getDocValuesType info)
+        FieldInfo$DocValuesType/NUMERIC (cond
+                                         (index_integer? field) (.get (.getInts FieldCache/DEFAULT reader field false) doc)
+                                         (index_float? field) (.get (.getFloats FieldCache/DEFAULT reader field false) doc)
+                                         (index_double? field) (.get (.getDoubles FieldCache/DEFAULT reader field false) doc)
+                                         :else (.get (.getLongs FieldCache/DEFAULT reader field false) doc))
+        FieldInfo$DocValuesType/SORTED (.utf8ToString (.get (.getTerms FieldCache/DEFAULT reader field false) doc))
+        FieldInfo$DocValuesType/BINARY (.utf8ToString (.get (.getTerms FieldCache/DEFAULT reader field false) doc))
+        nil))))
+
+(defn doc-values->map [^IndexSearcher searcher doc-id fields]
+  (let [leaves (.leaves (.getIndexReader searcher))
+        ^AtomicReaderContext leaf (.get leaves (ReaderUtil/subIndex (int doc-id) leaves))
+        doc (- (int doc-id) (.docBase leaf))]
+    (into {} (for [field fields
+                   :let [v (doc-value (.reader leaf) (as-str field) doc)]
+                   :when (some? v)]
+               [(keyword (as-str field)) v]))))
+
 (defn document->map
   [^Document doc only-fields score highlighter ^Explanation explanation]
-  (let [m (into {:_score score}
-                (for [^IndexableField f (.getFields doc)]
-                  (let [str-name (.name f)
-                        name (keyword str-name)]
-                    (if (or (nil? only-fields)
-                            (name only-fields))
-                      (let [values (.getValues doc str-name)]
-                        (if (= (count values) 1)
-                          [name (first values)]
-                          ;; we store fake element in all arrays
-                          ;; so if the user stores ["a"], we actually
-                          ;; store ["__array_identifier__","a"]
-                          ;; and now we just have to return everything,
-                          ;; but the first item
-                          [name (vec (rest values))]))))))
-        highlighted (highlighter m)]
+  (let [loaded (into {:_score score}
+                     (for [^IndexableField f (.getFields doc)]
+                       (let [str-name (.name f)
+                             name (keyword str-name)
+                             values (.getValues doc str-name)]
+                         (if (= (count values) 1)
+                           [name (first values)]
+                           ;; we store fake element in all arrays
+                           ;; so if the user stores ["a"], we actually
+                           ;; store ["__array_identifier__","a"]
+                           ;; and now we just have to return everything,
+                           ;; but the first item
+                           [name (vec (rest values))]))))
+        ;; highlighted fields are loaded even if they are not returned
+        m (if (nil? only-fields)
+            loaded
+            (into {} (for [[k v] loaded
+                           :when (or (= k :_score) (k only-fields))]
+                       [k v])))
+        highlighted (highlighter loaded)]
     (conj
      m
      (when explanation (assoc m :_explain (.toString explanation)))
@@ -102,37 +160,145 @@
                                                 (.rewrite sort searcher)
                                                 sort))))))))
 
-(defn get-score-collector ^TopDocsCollector [input pq-size searcher]
-  (if input
-    (TopFieldCollector/create (input->sort input searcher)
+(def parallel-segments* (atom false))
+
+(defn parallel-segments? [parallel-segments ^IndexSearcher searcher]
+  (and parallel-segments
+       (> (count (.leaves (.getIndexReader searcher))) 1)))
+
+(defn collect-into [search-fn new-score-collector]
+  (let [^TopDocsCollector score-collector (new-score-collector)
+        facet-collector (FacetsCollector.)]
+    (search-fn (MultiCollector/wrap
+                ^"[Lorg.apache.lucene.search.Collector;"
+                (into-array Collector
+                            [score-collector
+                             facet-collector])))
+    [score-collector facet-collector]))
+
+(defn search-and-collect
+  "searches with a score collector from new-score-collector and a
+  FacetsCollector, returns [total-hits top-docs-starting-at-start
+  facets-collector].
+  With parallel the shard's segments are split in slices (one per
+  :segment thread), searched on the :segment pool (the first one in the
+  current thread) and their top docs and facet collectors are merged"
+  [^SliceSearcher searcher ^Query query ^Filter filter new-score-collector ^Sort sort pq-size start parallel]
+  (if-not parallel
+    (let [[^TopDocsCollector score-collector facet-collector]
+          (collect-into #(.search searcher query filter ^Collector %) new-score-collector)]
+      [(.getTotalHits score-collector) (.topDocs score-collector (int start)) facet-collector])
+    (let [weight (.createNormalizedWeight searcher (if filter
+                                                     (FilteredQuery. query filter)
+                                                     query))
+          fns (for [^List leaves (SliceSearcher/slices (.leaves (.getIndexReader searcher))
+                                                 (executor/threads :segment))]
+                (fn []
+                  (collect-into #(.search searcher leaves weight ^Collector %) new-score-collector)))
+          futures (executor/submit-all-if :segment true (rest fns))
+          collected (into [((first fns))] (map deref futures))]
+      [(reduce + (for [[^TopDocsCollector score-collector _] collected]
+                   (.getTotalHits score-collector)))
+       (TopDocs/merge sort
+                      (int start)
+                      (int (- pq-size start))
+                      ^"[Lorg.apache.lucene.search.TopDocs;"
+                      (into-array TopDocs (for [[^TopDocsCollector score-collector _] collected]
+                                            (.topDocs score-collector))))
+       (SliceSearcher/merge (mapv second collected))])))
+
+(defn get-score-collector ^TopDocsCollector [^Sort sort pq-size ^ScoreDoc after]
+  (if sort
+    (TopFieldCollector/create sort
                               pq-size
+                              ^FieldDoc after
                               true
                               true
                               true
                               true)
-    (TopScoreDocCollector/create pq-size true)))
+    (TopScoreDocCollector/create (int pq-size) after true)))
+
+;; cursor pagination:
+;; the 'after' token is a list of the last hit each shard contributed
+;; to the returned page, keyed by identifier:shard because the same
+;; shard names exist on every partition. Clients should pass it back
+;; as-is, it is not meant to be read or built by hand.
+(defn cursor? [input]
+  (contains? input :after))
+
+(defn cursor-key [shard]
+  (str (as-str @identifier*) ":" (as-str shard)))
+
+(defn sort-value->json [v]
+  (if (instance? BytesRef v)
+    (.utf8ToString ^BytesRef v)
+    v))
+
+(defn json->sort-value [^SortField f v]
+  (when-not (nil? v)
+    (condp = (.getType f)
+      SortField$Type/INT (int v)
+      SortField$Type/DOC (int v)
+      SortField$Type/LONG (long v)
+      SortField$Type/FLOAT (float v)
+      SortField$Type/SCORE (float v)
+      SortField$Type/STRING (BytesRef. (as-str v))
+      SortField$Type/STRING_VAL (BytesRef. (as-str v))
+      (if (number? v) (double v) v))))
+
+(defn shard-after ^ScoreDoc [after shard ^Sort sort]
+  (let [key (cursor-key shard)]
+    (when-let [entry (first (filter #(= key (:shard %)) after))]
+      (if sort
+        (FieldDoc. (int (:doc entry))
+                   (float (:score entry))
+                   (into-array Object (map json->sort-value
+                                           (.getSort sort)
+                                           (:fields entry))))
+        (ScoreDoc. (int (:doc entry))
+                   (float (:score entry)))))))
+
+(defn hits->after [previous hits]
+  ;; hits are in page order, so the last one seen per shard wins,
+  ;; shards that did not make it into the page keep their old position
+  (let [positions (reduce (fn [sum hit]
+                            (if-let [c (:_cursor hit)]
+                              (assoc sum (:shard c) c)
+                              sum))
+                          (into {} (for [entry previous] [(:shard entry) entry]))
+                          hits)]
+    (into [] (vals positions))))
+
+(defn strip-cursors
+  "the :_cursor of every hit is only needed by the node that builds the
+  'after' token (see hits->after), clients get just the token"
+  [result]
+  (if (and (map? result) (sequential? (:hits result)))
+    (assoc result :hits (mapv #(dissoc % :_cursor) (:hits result)))
+    result))
 
 (defn by-score [a b]
-  (compare (:_score b) (:_score a)))
+  (Double/compare (double (:_score b)) (double (:_score a))))
 
 (defn by-count [a b]
   (compare (:count b) (:count a)))
 
 (defn compare-array-of-sort-fields [a b]
-  (let [aa (first a)
-        bb (first b)]
-    (if (and (not aa) (not bb))
-      0
-      (if-not aa
-        -1
-        (if-not bb
-          1
-          (let [c (if (get aa :reverse true)
-                    (compare (get bb :value nil) (get aa :value nil))
-                    (compare (get aa :value nil) (get bb :value nil)))]
-            (if (or (not= c 0) (and (not aa) (not bb)))
-              c
-              (compare-array-of-sort-fields (rest a) (rest b)))))))))
+  (loop [i 0]
+    (let [aa (nth a i nil)
+          bb (nth b i nil)]
+      (if (and (not aa) (not bb))
+        0
+        (if-not aa
+          -1
+          (if-not bb
+            1
+            (let [c (if (get aa :reverse true)
+                      (compare (get bb :value nil) (get aa :value nil))
+                      (compare (get aa :value nil) (get bb :value nil)))]
+              (if (not= c 0)
+                c
+                (recur (inc i))))))))))
 
 (defn by-sort-fields [a b]
   (let [c (compare-array-of-sort-fields (get a :_sort []) (get b :_sort []))]
@@ -140,6 +306,36 @@
       c
       (by-score a b))))
 
+(defn hit-sorter [input]
+  (if (:sort input)
+    by-sort-fields
+    by-score))
+
+(defn merge-sorted-hits
+  "k-way merge of already sorted lists of hits, keeps at most n hits (or
+  all of them if n is nil). Equal hits are taken in list order, so the
+  result is the same as stable sorting the concatenated lists"
+  [sorter lists n]
+  (let [lists (into [] (filter #(> (count %) 0) lists))
+        pq (PriorityQueue. (int (max 1 (count lists)))
+                           ^java.util.Comparator (fn [[hit-a list-a] [hit-b list-b]]
+                                                   (let [c (sorter hit-a hit-b)]
+                                                     (if (not= c 0)
+                                                       c
+                                                       (compare list-a list-b)))))]
+    (doseq [[idx l] (indexed lists)]
+      (.add pq [(nth l 0) idx 0]))
+    (loop [out (transient [])]
+      (if (or (.isEmpty pq)
+              (and n (>= (count out) n)))
+        (persistent! out)
+        (let [[hit idx pos] (.poll pq)
+              l (nth lists idx)
+              next-pos (inc pos)]
+          (when (< next-pos (count l))
+            (.add pq [(nth l next-pos) idx next-pos]))
+          (recur (conj! out hit)))))))
+
 (defn enforce-limits? [input]
   (read-boolean-setting input :enforce-limits true))
 
@@ -202,17 +398,103 @@
              ;; the actual count of 'foo bar' is 17, because
              ;; __shard_2 actually didnt even send 'foo bar'
              ;; because of the size=2 cut
+             ;;
+             ;; use {:refine true} on the facet to get exact
+             ;; counts for the returned labels (see refine-results)
              [k (limit (input-facet-settings input (keyword k))
                        v
                        by-count)])))
 
+(defn realize-result [next]
+  (if (future? next)
+    (try
+      @next
+      (catch ExecutionException e
+        ;; a full pool rejects the whole request (429 with Retry-After),
+        ;; it is not a failure of this part
+        (if (instance? RejectedExecutionException (.getCause e))
+          (throw (.getCause e))
+          {:exception (as-str e)}))
+      (catch Throwable e
+        {:exception (as-str e)}))
+    next))
+
+
+;; two-phase facets:
+;; {:facets {:author {:size 5 :refine true :shard-size 30}}}
+;; phase 1 asks every shard (or peer) for :shard-size labels instead of
+;; :size, phase 2 asks only the ones that cut the list short and did not
+;; report some of the top :size candidates for their exact count
+(defn refine-facet? [config]
+  (read-boolean-setting config :refine false))
+
+(defn facet-shard-size [config]
+  (let [size (get config :size default-size)]
+    (get config :shard-size (+ (int (* size 1.5)) 10))))
+
+(defn facet-fetch-size [config]
+  (if (refine-facet? config)
+    (max (facet-shard-size config) (get config :size default-size))
+    (get config :size default-size)))
+
+(defn refine-dims [input]
+  (if (:facet-refine input)
+    {}
+    (into {} (for [[dim config] (get input :facets {})
+                   :when (refine-facet? config)]
+               [(keyword dim) config]))))
+
+(defn facet-phase-1-input [input]
+  ;; what peers get in phase 1, so their own top-n is the shard size
+  (reduce (fn [input [dim config]]
+            (let [n (facet-fetch-size config)]
+              (update-in input [:facets dim] assoc :size n :shard-size n)))
+          input
+          (refine-dims input)))
+
+(defn facet-refine-input [input labels]
+  (-> input
+      (assoc :facet-refine labels)
+      (dissoc :after)))
+
+(defn facet-refinements
+  "returns {index-of-result {dim [labels]}} for every phase 1 result
+  that has to be asked for exact counts"
+  [input results]
+  (let [dims (refine-dims input)
+        merged (merge-facets (reduce concat-facets nil (map #(get % :facets {}) results)))
+        candidates (into {} (for [[dim config] dims]
+                              [dim (map :label (take (get config :size default-size)
+                                                     (sort by-count (get merged dim))))]))]
+    (into {} (for [[idx result] (indexed results)
+                   :when (not (:exception result))
+                   :let [missing (into {} (for [[dim config] dims
+                                                :let [reported (get-in result [:facets dim] [])
+                                                      have (set (map :label reported))
+                                                      labels (into [] (remove have (get candidates dim)))]
+                                                ;; a short list is complete, missing means 0
+                                                :when (and (>= (count reported) (facet-fetch-size config))
+                                                           (seq labels))]
+                                            [dim labels]))]
+                   :when (seq missing)]
+               [idx missing]))))
+
+(defn refine-results
+  "fetch is called with the index of the result and the labels to count,
+  the returned results only carry facets so they can be reduced together
+  with the phase 1 results"
+  [input results fetch]
+  (let [refinements (facet-refinements input results)]
+    (when (seq refinements)
+      (stat/update-count (:index input) "facet-refine" (count refinements)))
+    (for [r (fetch refinements)]
+      (let [r (realize-result r)]
+        (if (:exception r)
+          r
+          (select-keys r [:facets]))))))
+
 (defn result-reducer [sum next]
-  (let [next (if (future? next)
-               (try
-                 @next
-                 (catch Throwable e
-                   {:exception (as-str e)}))
-               next)
+  (let [next (realize-result next)
         ex (if (:exception next)
              (if-not (can-return-partial? sum)
                (throw (Throwable. (as-str (:exception next))))
@@ -225,7 +507,7 @@
         (update-in [:failed] concat-if (:failed next))
         (update-in [:facets] concat-facets (get next :facets {}))
         (update-in [:total] + (get next :total 0))
-        (update-in [:hits] concat (get next :hits [])))))
+        (update-in [:hits] conj (vec (get next :hits []))))))
 
 (defn reduce-collection [collection input ms-start]
   (let [result (reduce result-reducer
@@ -236,23 +518,28 @@
                         :failed []
                         :can-return-partial (can-return-partial? input)}
                        collection)]
-    (-> result
-        (assoc-in [:facets] (merge-and-limit-facets input (:facets result)))
-        (assoc-in [:hits] (if (:sort input)
-                            (limit input (:hits result) by-sort-fields)
-                            (limit input (:hits result) by-score)))
-        (assoc-in [:took] (time-took ms-start)))))
+    (let [hits (merge-sorted-hits (hit-sorter input)
+                                  (:hits result)
+                                  (if (enforce-limits? input)
+                                    (get input :size default-size)
+                                    nil))]
+      (-> result
+          (assoc-in [:facets] (merge-and-limit-facets input (:facets result)))
+          (assoc-in [:hits] hits)
+          (conj-if (when (cursor? input)
+                     {:after (hits->after (:after input) hits)}))
+          (assoc-in [:took] (time-took ms-start))))))
 
 (defn sorted-fields->map [sort-fields fd-fields]
-  (map-indexed (fn [idx ^SortField f]
-                 {:reverse (.getReverse f)
-                  :name (.getField f)
-                  :value (nth fd-fields idx)}) sort-fields))
+  (into [] (map-indexed (fn [idx ^SortField f]
+                          {:reverse (.getReverse f)
+                           :name (.getField f)
+                           :value (nth fd-fields idx)}) sort-fields)))
 
 (defn get-facet-collector-counts [^FastTaxonomyFacetCounts fc facets]
   (into {} (for [[k v] facets]
              (if-let [fr (.getTopChildren fc
-                                          (get v :size default-size)
+                                          (facet-fetch-size v)
                                           (as-str k)
                                           ^"[Ljava.lang.String;" (into-array
                                                                   String []))]
@@ -261,38 +548,76 @@
                            {:label (.label lv)
                             :count (.value lv)}))]))))
 
+(defn shard-refine-facets
+  [& {:keys [^IndexSearcher searcher ^DirectoryTaxonomyReader taxo-reader query analyzer
+             facet-config facet-refine spatial-filter shard]}]
+  (let [ms-start (time-ms)
+        analyzer ^Analyzer (parse-analyzer analyzer)
+        query ^Query (cached-parse-query query analyzer)
+        facet-collector (FacetsCollector.)]
+    (.search searcher
+             query
+             (if spatial-filter
+               ^Filter (make-spatial-filter spatial-filter)
+               nil)
+             facet-collector)
+    {:facets (if taxo-reader
+               (let [fc (FastTaxonomyFacetCounts. taxo-reader
+                                                  facet-config
+                                                  facet-collector)]
+                 (into {} (for [[dim labels] facet-refine]
+                            [(keyword dim)
+                             (into [] (for [label labels
+                                            :let [n (.getSpecificValue fc
+                                                                       (as-str dim)
+                                                                       ^"[Ljava.lang.String;" (into-array String [(as-str label)]))]
+                                            :when (> (long n) 0)]
+                                        {:label (as-str label)
+                                         :count n}))])))
+               {})
+     :took (time-took ms-start)}))
+
 (defn shard-search
   [& {:keys [^IndexSearcher searcher ^DirectoryTaxonomyReader taxo-reader query analyzer
-             page size explain highlight facets fields facet-config sort spatial-filter shard]}]
+             page size explain highlight facets fields doc-values facet-config sort spatial-filter shard after cursor
+             parallel-segments global-stats]}]
   (let [ms-start (time-ms)
+        ;; one per search, it keeps the state of the queries that have
+        ;; one (TermPayloadClojureScoreQuery) for this search only
+        searcher (doto (SliceSearcher. searcher)
+                   (.set_global_statistics (first global-stats) (second global-stats)))
         analyzer ^Analyzer (parse-analyzer analyzer)
-        query ^Query (parse-query query analyzer)
+        query ^Query (cached-parse-query query analyzer)
         hackish-queries (hack-extract-hackish-queries query)
         highlighter (make-highlighter query searcher highlight analyzer)
+        to-load (fields-to-load fields highlight)
+        ;; with a cursor each shard only needs the next 'size' hits after
+        ;; its last position, instead of collecting every previous page
+        page (if cursor 0 page)
         pq-size (+ (* page size) size)
-        score-collector (get-score-collector sort pq-size searcher)
-        facet-collector (FacetsCollector.)
+        lucene-sort (when sort (input->sort sort searcher))
+        shard-after (when cursor (shard-after after shard lucene-sort))
         spatial-filter (if spatial-filter
                          ^Filter (make-spatial-filter spatial-filter)
                          nil)
-        wrap (MultiCollector/wrap
-              ^"[Lorg.apache.lucene.search.Collector;"
-              (into-array Collector
-                          [score-collector
-                           facet-collector]))]
-    (.search searcher
-             query
-             spatial-filter
-             wrap)
-    (stat/update-count shard "shard-search-collect-total" (.getTotalHits score-collector))
-    {:total (.getTotalHits score-collector)
+        [total ^TopDocs top facet-collector] (search-and-collect searcher
+                                                                 query
+                                                                 spatial-filter
+                                                                 #(get-score-collector lucene-sort pq-size shard-after)
+                                                                 lucene-sort
+                                                                 pq-size
+                                                                 (* page size)
+                                                                 (parallel-segments? parallel-segments
+                                                                                     searcher))]
+    (stat/update-count shard "shard-search-collect-total" total)
+    {:total total
      ;; facets:
      ;; do not send the error back,
      ;; for example with no taxo reader, probably problem with open and exception is thrown
      ;; even though we might fake a facet result
      ;; it could really surprise the client
      :facets (merge
-              (hack-merge-dynamic-facets-counts hackish-queries)
+              (hack-merge-dynamic-facets-counts hackish-queries searcher)
               (if (and taxo-reader (> (count facets) 0))
                 (try
                   (let [fc (FastTaxonomyFacetCounts. taxo-reader
@@ -303,46 +628,282 @@
                     (let [ex (ex-str e)]
                       (log/warn (ex-str e))
                       {})))))
-     :hits (let [top (.topDocs score-collector (* page size))]
-             (into [] (for [^ScoreDoc hit (.scoreDocs top)]
-                        (let [doc (hack-merge-result-state hackish-queries
-                                                           (.doc hit)
-                                                           (document->map (.doc searcher (.doc hit))
-                                                                          fields
-                                                                          (.score hit)
-                                                                          highlighter
-                                                                          (when explain
-                                                                            (.explain searcher query (.doc hit)))))]
-                          (if sort
-                            (assoc doc :_sort (sorted-fields->map (.fields ^TopFieldDocs top)
-                                                                  (.fields ^FieldDoc hit)))
-                            doc)))))
+     ;; hits are sent sorted with the same sorter used by reduce-collection,
+     ;; so it can just merge them
+     :hits (into [] (clojure.core/sort (hit-sorter {:sort sort})
+                                       (for [^ScoreDoc hit (.scoreDocs top)]
+                                         (let [doc (hack-merge-result-state hackish-queries
+                                                                            searcher
+                                                                            (.doc hit)
+                                                                            (document->map (load-document searcher (.doc hit) to-load)
+                                                                                           fields
+                                                                                           (.score hit)
+                                                                                           highlighter
+                                                                                           (when explain
+                                                                                             (.explain searcher query (.doc hit)))))]
+                                           (cond-> doc
+                                             doc-values (merge (doc-values->map searcher (.doc hit) doc-values))
+                                             sort (assoc :_sort (sorted-fields->map (.fields ^TopFieldDocs top)
+                                                                                    (.fields ^FieldDoc hit)))
+                                             cursor (assoc :_cursor {:shard (cursor-key shard)
+                                                                     :doc (.doc hit)
+                                                                     :score (.score hit)
+                                                                     :fields (when sort
+                                                                               (mapv sort-value->json
+                                                                                     (.fields ^FieldDoc hit)))}))))))
      :took (time-took ms-start)}))
 
-(defn search [input]
+(defn required-generation [input shard]
+  (let [generations (get input :generation {})]
+    (get generations (keyword shard) (get generations shard))))
+
+;; global statistics:
+;; {"global-stats": true} first asks every shard (and with search-many
+;; every peer) for the doc freq of the query's terms and the collection
+;; statistics of their fields, sums them and then every shard scores
+;; with the sums instead of its own numbers (see SliceSearcher), so idf
+;; based scores are comparable between shards. The statistics of a
+;; shard are cached by its reader version, so repeated terms only cost
+;; a lookup until the next refresh. They travel as vectors,
+;; {:terms [[field text doc-freq total-term-freq]...]
+;;  :fields [[field max-doc doc-count sum-total-term-freq sum-doc-freq]...]}
+(def term-stats-hits (AtomicLong. 0))
+(def term-stats-misses (AtomicLong. 0))
+
+(defonce ^ConcurrentLinkedHashMap term-stats-cache
+  (.build (doto (ConcurrentLinkedHashMap$Builder.)
+            (.maximumWeightedCapacity default-term-stats-cache-size))))
+
+(defn set-term-stats-cache-size [n]
+  (.setCapacity term-stats-cache (long n)))
+
+(defn term-stats-cache-stat []
+  {:hits (.get ^AtomicLong term-stats-hits)
+   :misses (.get ^AtomicLong term-stats-misses)
+   :size (.size term-stats-cache)})
+
+(defn global-stats? [input]
+  (read-boolean-setting input :global-stats false))
+
+(defn cached-stat [k f]
+  (if-let [v (.get term-stats-cache k)]
+    (do
+      (.incrementAndGet ^AtomicLong term-stats-hits)
+      v)
+    (let [v (f)]
+      (.incrementAndGet ^AtomicLong term-stats-misses)
+      (.put term-stats-cache k v)
+      v)))
+
+(defn query-terms [^IndexSearcher searcher ^Query query]
+  ;; only terms that survive the trip as a string
+  (filter (fn [^Term t] (= (.bytes t) (BytesRef. (.text t))))
+          (Helper/collect_terms (.rewrite searcher query) (HashSet.))))
+
+(defn shard-term-stats [shard ^IndexSearcher searcher ^Query query]
+  (let [version (.getVersion ^DirectoryReader (.getIndexReader searcher))
+        terms (query-terms searcher query)]
+    {:terms (into [] (for [^Term t terms]
+                       (into [(.field t) (.text t)]
+                             (cached-stat [shard version (.field t) (.text t)]
+                                          #(let [ts (.termStatistics searcher
+                                                                     t
+                                                                     (TermContext/build (.getTopReaderContext searcher) t))]
+                                             [(.docFreq ts) (.totalTermFreq ts)])))))
+     :fields (into [] (for [field (distinct (map #(.field ^Term %) terms))]
+                        (into [field]
+                              (cached-stat [shard version field]
+                                           #(let [cs (.collectionStatistics searcher field)]
+                                              [(.maxDoc cs) (.docCount cs) (.sumTotalTermFreq cs) (.sumDocFreq cs)])))))}))
+
+(defn add-stat [a b]
+  ;; -1 means the codec does not know it
+  (if (or (neg? a) (neg? b))
+    -1
+    (+ a b)))
+
+(defn merge-term-stats [stats]
+  {:terms (into [] (for [[[field text] rows] (group-by #(subvec (vec %) 0 2) (mapcat :terms stats))]
+                     [field text
+                      (reduce + (map #(long (nth % 2)) rows))
+                      (reduce add-stat (map #(long (nth % 3)) rows))]))
+   :fields (into [] (for [[field rows] (group-by first (mapcat :fields stats))]
+                      (into [field] (for [i (range 1 5)]
+                                      (reduce add-stat (map #(long (nth % i)) rows))))))})
+
+(defn term-stats->global
+  "[term->TermStatistics field->CollectionStatistics] for SliceSearcher"
+  [term-stats]
+  [(into {} (for [[field text doc-freq total-term-freq] (:terms term-stats)]
+              (let [t (Term. ^String (as-str field) ^String (as-str text))]
+                [t (TermStatistics. (.bytes t) (long doc-freq) (long total-term-freq))])))
+   (into {} (for [[field max-doc doc-count sum-total-term-freq sum-doc-freq] (:fields term-stats)]
+              [(as-str field) (CollectionStatistics. (as-str field)
+                                                     (long max-doc)
+                                                     (long doc-count)
+                                                     (long sum-total-term-freq)
+                                                     (long sum-doc-freq))]))])
+
+(defn shards-term-stats [input shards]
+  (merge-term-stats
+   (for [result (executor/submit-all-if
+                 :search
+                 (cond-for-future-per-shard input true (count shards))
+                 (for [shard shards]
+                   (fn []
+                     (use-searcher shard
+                                   (get input :must-refresh false)
+                                   (fn [^IndexSearcher searcher _]
+                                     (shard-term-stats shard
+                                                       searcher
+                                                       (cached-parse-query (get input :query)
+                                                                           (parse-analyzer (get input :analyzer)))))))))]
+     (if (future? result) @result result))))
+
+(defn search-shards [input shards]
+  (let [facets (get input :facets)
+        facet-refine (get input :facet-refine)
+        global-stats (when-let [term-stats (:term-stats input)]
+                       (term-stats->global term-stats))]
+    (executor/submit-all-if
+     :search
+     (cond-for-future-per-shard input true (count shards))
+     (for [shard shards]
+       (fn []
+         (when-let [generation (required-generation input shard)]
+           (wait-for-generation shard generation (get input :timeout 1000)))
+         (use-searcher shard
+                       (get input :must-refresh false)
+                       (fn [^IndexSearcher searcher ^DirectoryTaxonomyReader taxo-reader]
+                         (if facet-refine
+                           (shard-refine-facets :searcher searcher
+                                                :shard shard
+                                                :taxo-reader taxo-reader
+                                                :analyzer (get input :analyzer)
+                                                :query (get input :query)
+                                                :facet-config (get-facet-config facets)
+                                                :facet-refine facet-refine
+                                                :spatial-filter (get input :spatial-filter nil))
+                           (shard-search :searcher searcher
+                                         :shard shard
+                                         :taxo-reader taxo-reader
+                                         :analyzer (get input :analyzer)
+                                         :query (get input :query)
+                                         :facet-config (get-facet-config facets)
+                                         :facets facets
+                                         :highlight (get input :highlight)
+                                         :page (get input :page 0)
+                                         :cursor (cursor? input)
+                                         :after (get input :after)
+                                         :size (get input :size default-size)
+                                         :sort (get input :sort)
+                                         :spatial-filter (get input :spatial-filter nil)
+                                         :explain (get input :explain false)
+                                         :parallel-segments (read-boolean-setting input
+                                                                                  :parallel-segments
+                                                                                  @parallel-segments*)
+                                         :fields (get input :fields)
+                                         :doc-values (get input :doc-values)
+                                         :global-stats global-stats)))))))))
+
+(defn search-uncached [input]
   (let [ms-start (time-ms)
-        facets (get input :facets)
         index (need :index input "need <index>")
-        shards (index-name-matching (resolve-alias index))
-        n-shards (count shards)
-        futures (into [] (for [shard shards]
-                           (future-if
-                            (cond-for-future-per-shard input true n-shards)
-                            (use-searcher shard
-                                          (get input :must-refresh false)
-                                          (fn [^IndexSearcher searcher ^DirectoryTaxonomyReader taxo-reader]
-                                            (shard-search :searcher searcher
-                                                          :shard shard
-                                                          :taxo-reader taxo-reader
-                                                          :analyzer (get input :analyzer)
-                                                          :query (get input :query)
-                                                          :facet-config (get-facet-config facets)
-                                                          :facets facets
-                                                          :highlight (get input :highlight)
-                                                          :page (get input :page 0)
-                                                          :size (get input :size default-size)
-                                                          :sort (get input :sort)
-                                                          :spatial-filter (get input :spatial-filter nil)
-                                                          :explain (get input :explain false)
-                                                          :fields (get input :fields)))))))]
-    (reduce-collection futures input ms-start)))
+        shards (into [] (index-name-matching (resolve-alias index)))
+        ;; search-many sends the statistics of all peers
+        input (if (and (global-stats? input) (not (:term-stats input)))
+                (assoc input :term-stats (shards-term-stats input shards))
+                input)
+        futures (search-shards input shards)]
+    (if (empty? (refine-dims input))
+      (reduce-collection futures input ms-start)
+      (let [results (mapv realize-result futures)
+            refined (refine-results input
+                                    results
+                                    (fn [refinements]
+                                      (executor/submit-all-if
+                                       :search
+                                       (cond-for-future-per-shard input true (count refinements))
+                                       (for [[idx labels] refinements]
+                                         (fn []
+                                           (first (search-shards (facet-refine-input input labels)
+                                                                 [(nth shards idx)])))))))]
+        (reduce-collection (concat results refined) input ms-start)))))
+
+;; whole responses are cached by the request and the reader version of
+;; every shard it searched, so a refresh that changed a shard makes all
+;; the entries using it unreachable (they age out of the LRU)
+(def result-cache-hits (AtomicLong. 0))
+(def result-cache-misses (AtomicLong. 0))
+
+(defonce ^ConcurrentLinkedHashMap result-cache
+  (.build (doto (ConcurrentLinkedHashMap$Builder.)
+            (.maximumWeightedCapacity 0)
+            (.weigher (reify Weigher
+                        (weightOf [this entry]
+                          (int (:bytes entry))))))))
+
+(defn set-result-cache-mb [mb]
+  (.setCapacity result-cache (* 1024 1024 (long mb))))
+
+(defn estimate-bytes [x]
+  ;; rough heap size of a response, only used to bound the cache
+  (cond
+   (string? x) (+ 40 (* 2 (count x)))
+   (map? x) (reduce-kv (fn [sum k v] (+ sum 32 (estimate-bytes k) (estimate-bytes v))) 48 x)
+   (coll? x) (reduce (fn [sum v] (+ sum 8 (estimate-bytes v))) 48 x)
+   :else 16))
+
+(defn shard-version [shard]
+  (let [^SearcherTaxonomyManager manager (get-manager shard false)
+        pair ^SearcherTaxonomyManager$SearcherAndTaxonomy (.acquire manager)]
+    (try
+      (.getVersion ^DirectoryReader (.getIndexReader (.searcher pair)))
+      (finally
+        (.release manager pair)))))
+
+(defn result-cache? [input]
+  ;; requests that refresh or wait for a generation would see a newer
+  ;; reader than the one in the key, and queries like random-score
+  ;; would replay the same "random" order
+  (and (> (.capacity result-cache) 0)
+       (read-boolean-setting input :cache true)
+       (not (read-boolean-setting input :must-refresh false))
+       (not (contains? input :generation))
+       (not (non-deterministic? (cached-parse-query (get input :query)
+                                                    (parse-analyzer (get input :analyzer)))))))
+
+(defn search [input]
+  (cond
+   (:global-stats-phase input)
+   ;; search-many asking for this node's part of the global statistics
+   {:term-stats (shards-term-stats input
+                                   (into [] (index-name-matching (resolve-alias (need :index input "need <index>")))))}
+   (not (result-cache? input))
+   (search-uncached input)
+   :else
+   (let [ms-start (time-ms)
+         index (need :index input "need <index>")
+         shards (sort (index-name-matching (resolve-alias index)))
+         k [(canonical-json (dissoc input :timeout :cache))
+            (mapv (fn [shard] [shard (shard-version shard)]) shards)]]
+     (if-let [entry (.get result-cache k)]
+       (do
+         (.incrementAndGet ^AtomicLong result-cache-hits)
+         (assoc (:result entry)
+           :took (time-took ms-start)
+           :cached true))
+       (let [result (search-uncached input)]
+         (.incrementAndGet ^AtomicLong result-cache-misses)
+         ;; partial results (a shard failed) are not cached
+         (when (empty? (:failed result))
+           (.put result-cache k {:bytes (estimate-bytes result)
+                                 :result result}))
+         result)))))
+
+(defn result-cache-stat []
+  {:hits (.get ^AtomicLong result-cache-hits)
+   :misses (.get ^AtomicLong result-cache-misses)
+   :entries (.size result-cache)
+   :bytes (.weightedSize result-cache)
+   :capacity (.capacity result-cache)})
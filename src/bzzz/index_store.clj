@@ -7,6 +7,7 @@
   (use bzzz.index-facet-common)
   (use bzzz.index-spatial)
   (:require [bzzz.cached-eval :as cached-eval])
+  (:require [bzzz.executor :as executor])
   (:require [bzzz.index-stat :as stat])
   (:require [bzzz.log :as log])
   (:import (java.io StringReader)
@@ -16,10 +17,13 @@
            (org.apache.lucene.facet.taxonomy.directory DirectoryTaxonomyWriter DirectoryTaxonomyReader)
            (org.apache.lucene.analysis Analyzer)
            (org.apache.lucene.document Document Field Field$Index Field$Store
-                                       IntField LongField FloatField DoubleField)
+                                       IntField LongField FloatField DoubleField
+                                       NumericDocValuesField FloatDocValuesField
+                                       DoubleDocValuesField SortedDocValuesField)
            (org.apache.lucene.index IndexWriter IndexReader Term IndexableField
                                     IndexWriterConfig DirectoryReader FieldInfo)
            (org.apache.lucene.search Query)
+           (org.apache.lucene.util BytesRef)
            (org.apache.lucene.store NIOFSDirectory Directory)))
 
 (defn text-field [^Field$Store stored ^String key value]
@@ -48,6 +52,19 @@
       (let [ex (str "exception parsing numeric field <" key "> value <" value "> exception: " (ex-str e))]
         (throw (Throwable. ex))))))
 
+(defn doc-values-field [^String key value]
+  ;; the FieldCache (and so sorting and expressions) reads the doc
+  ;; values when a segment has them, instead of uninverting the field
+  (try
+    (cond
+     (index_integer? key) (NumericDocValuesField. key (long (int-or-parse value)))
+     (index_long? key) (NumericDocValuesField. key (long (long-or-parse value)))
+     (index_float? key) (FloatDocValuesField. key (float (float-or-parse value)))
+     (index_double? key) (DoubleDocValuesField. key (double (double-or-parse value)))
+     :else (SortedDocValuesField. key (BytesRef. ^String (as-str value))))
+    (catch Exception e
+      (throw (Throwable. (str "exception creating doc values for field <" key "> value <" value "> exception: " (ex-str e)))))))
+
 (defn add-field [^Document document key value]
   (let [str-key (as-str key)
         stored (if (stored? str-key)
@@ -56,6 +73,10 @@
         generator (if (numeric? str-key)
                     #(numeric-field stored str-key %)
                     #(text-field stored str-key %))]
+    (if (doc-values? str-key)
+      (if (vector? value)
+        (throw (Throwable. (str "doc values field <" str-key "> can not have multiple values")))
+        (.add document (doc-values-field str-key value))))
     (if (vector? value)
       (do
         (if (stored? str-key)
@@ -92,40 +113,73 @@
       (.close stream))
     (add-facet-field-single doc dim val)))
 
+(defn new-document [m facets ^Analyzer analyzer spatial-strategy]
+  (let [doc (map->document m spatial-strategy)]
+    (doseq [[dim f-info] facets]
+      (if-let [f-val ((keyword dim) m)]
+        (add-facet-field doc dim f-val f-info analyzer)))
+    doc))
+
+(defn validate-documents
+  "builds every document once without writing it, so a bad document
+  fails the store before any writer has a document of it"
+  [documents facets analyzer hash-fn number-of-shards]
+  (let [analyzer ^Analyzer (parse-analyzer analyzer)
+        spatial-strategy (new-spatial-strategy)]
+    (doseq [m documents]
+      (new-document m facets analyzer spatial-strategy)
+      (when hash-fn
+        (mod (hash-fn m) number-of-shards)))))
+
 (defn store-on-shard [index documents facets analyzer force-merge]
-  (let [t0 (time-ms)]
+  (let [t0 (time-ms)
+        analyzer ^Analyzer (parse-analyzer analyzer)]
+    ;; documents can be a lazy seq, the callback is a once-only fn, so
+    ;; it drops documents when it starts reading them and use-writer
+    ;; does not hold on to the head of the seq
     (use-writer index
-                (parse-analyzer analyzer)
                 force-merge
-                (fn [^IndexWriter writer ^DirectoryTaxonomyWriter taxo]
+                (^:once fn* [^IndexWriter writer ^DirectoryTaxonomyWriter taxo]
                   (let [config (get-facet-config facets)
                         spatial-strategy (new-spatial-strategy)
-                        analyzer (.getAnalyzer writer)]
+                        n-documents (atom 0)]
                     (doseq [m documents]
-                      (let [doc (map->document m spatial-strategy)]
-                        (doseq [[dim f-info] facets]
-                          (if-let [f-val ((keyword dim) m)]
-                            (add-facet-field doc dim f-val f-info analyzer)))
+                      (swap! n-documents inc)
+                      (let [doc (new-document m facets analyzer spatial-strategy)]
                         (if (:id m)
                           (.updateDocument writer ^Term (Term. ^String id-field
                                                                (as-str (:id m)))
-                                           (.build config taxo doc))
-                          (.addDocument writer (.build config taxo doc))))))
-                  (stat/update-count index "store-on-shard-documents" (count documents))
-                  { index {:done true
-                           :took-internal (time-took t0)
-                           :attempt-to-write (count documents)}}))))
+                                           (.build config taxo doc)
+                                           analyzer)
+                          (.addDocument writer (.build config taxo doc) analyzer))))
+                    (stat/update-count index "store-on-shard-documents" @n-documents)
+                    { index (conj-if {:done true
+                                      :took-internal (time-took t0)
+                                      :attempt-to-write @n-documents}
+                                     (if-let [generation (writer-generation index)]
+                                       [:generation generation]))})))))
 
 (defn default-hash-fn [doc]
   (if-let [id (:id doc)]
     (hash id)
     (hash doc)))
 
-(defn store [input]
-  (let [{:keys [index documents analyzer
+(defn shard-documents
+  "the documents that hash to shard n, filtered again from documents
+  every time it is read, so streamed documents are not kept in memory"
+  [documents hash-fn number-of-shards n]
+  (reify
+    clojure.lang.Seqable
+    (seq [this]
+      (seq (filter (fn [doc]
+                     (= n (mod (hash-fn doc) number-of-shards)))
+                   documents)))))
+
+(defn store-documents [input documents]
+  (let [{:keys [index analyzer
                 facets shard alias-set alias-del
                 force-merge number-of-shards hash-fn]
-         :or {documents [] analyzer nil facets {}
+         :or {analyzer nil facets {}
               shard nil alias-set nil alias-del nil
               force-merge 0 number-of-shards nil
               hash-fn nil}} input]
@@ -139,22 +193,34 @@
       (let [compiled-hash-fn (if hash-fn
                                (cached-eval/get-or-eval hash-fn)
                                default-hash-fn)
-            futures (into [] (for [n (range number-of-shards)]
-                               (future-if
-                                (cond-for-future-per-shard input false number-of-shards)
-                                (store-on-shard (sharded (resolve-alias index) n)
-                                                (filter (fn [doc]
-                                                          (= n (mod (compiled-hash-fn doc) number-of-shards)))
-                                                        documents)
-                                                facets
-                                                analyzer
-                                                force-merge))))]
-        (into [] (for [f futures] (if (future? f) @f f))))
-      (store-on-shard (sharded (resolve-alias index) (or shard 0))
-                      documents
-                      facets
-                      analyzer
-                      force-merge))))
+            ;; every shard reads the documents once and stores its
+            ;; share with one use-writer, like a single shard store
+            store-share (fn [n]
+                          (store-on-shard (sharded (resolve-alias index) n)
+                                          (shard-documents documents compiled-hash-fn number-of-shards n)
+                                          facets
+                                          analyzer
+                                          force-merge))]
+        (validate-documents documents facets analyzer compiled-hash-fn number-of-shards)
+        (let [futures (executor/submit-all-if
+                       :store
+                       (cond-for-future-per-shard input false number-of-shards)
+                       (for [n (range number-of-shards)]
+                         #(store-share n)))]
+          (into [] (for [f futures] (if (future? f) @f f)))))
+      (do
+        (validate-documents documents facets analyzer nil nil)
+        (store-on-shard (sharded (resolve-alias index) (or shard 0))
+                        documents
+                        facets
+                        analyzer
+                        force-merge)))))
+
+(defn store [input]
+  ;; the documents are taken out of the input before anything else sees
+  ;; it, so only the store loop holds on to the (lazy) seq
+  (store-documents (dissoc input :documents)
+                   (get input :documents [])))
 
 (defn delete-from-query
   [index input]
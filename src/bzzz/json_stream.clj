@@ -0,0 +1,103 @@
+(ns bzzz.json-stream
+  (use bzzz.util)
+  (use bzzz.const)
+  (use [clojure.string :only (join)])
+  (:require [clojure.data.json :as json])
+  (:import (java.io InputStream ByteArrayInputStream InputStreamReader PushbackReader)
+           (bzzz.java.wire JsonSplitter Spool)))
+
+;; store requests:
+;; the body is read straight from the request stream, JsonSplitter puts
+;; the documents array in a spool (in memory up to
+;; default-store-spool-kb, in a temp file after that) and the rest of
+;; the request is parsed as usual, so the keys can come in any order.
+;; The documents are parsed one by one from the spool while they are
+;; being indexed, every pass over them parses the spool again from the
+;; start, so none of them is kept in memory between passes.
+
+(def ^:dynamic *spools* nil)
+
+(defmacro with-spools
+  "deletes the spools of the requests read in body when it is done"
+  [& body]
+  `(let [spools# (atom [])]
+     (binding [*spools* spools#]
+       (try
+         ~@body
+         (finally
+           (doseq [^Spool s# @spools#]
+             (.release s#)))))))
+
+(defn utf8-reader ^PushbackReader [^InputStream is]
+  (PushbackReader. (InputStreamReader. is "UTF-8")))
+
+(defn skip-whitespace [^PushbackReader r]
+  (loop []
+    (let [c (.read r)]
+      (if (and (>= c 0) (Character/isWhitespace c))
+        (recur)
+        c))))
+
+(defn lazy-array [^PushbackReader r done]
+  ;; r is positioned right after [ or ,
+  (lazy-seq
+   (let [c (skip-whitespace r)]
+     (if (= c (int \]))
+       (done)
+       (do
+         (.unread r (int c))
+         (let [v (json/read r :key-fn keyword)
+               c (skip-whitespace r)]
+           (condp = c
+             (int \,) (cons v (lazy-array r done))
+             (int \]) (do (done) (list v))
+             (throw (Throwable. (str "unexpected <" (char c) "> in documents"))))))))))
+
+(defn spooled-documents
+  "the documents array in spool as a collection, every seq of it is a
+  new lazy seq that reads the spool from the start"
+  [^Spool spool]
+  (reify clojure.lang.Seqable
+    (seq [this]
+      (let [r (utf8-reader (.open spool))]
+        (.read r) ;; [
+        (seq (lazy-array r (fn []
+                             (.close r)
+                             nil)))))))
+
+(defn read-json-bytes [^bytes b]
+  (if (= 0 (alength b))
+    {}
+    (json/read (utf8-reader (ByteArrayInputStream. b)) :key-fn keyword)))
+
+(defn read-stream [^InputStream is]
+  (if-not is
+    {}
+    (let [spool (Spool. (* 1024 default-store-spool-kb))
+          splitter (JsonSplitter. "documents" spool)
+          input (read-json-bytes (.split splitter is))]
+      (if-not (.found splitter)
+        (do
+          (.release spool)
+          input)
+        (do
+          (when *spools*
+            (swap! *spools* conj spool))
+          (assoc input :documents (spooled-documents spool)))))))
+
+;; responses:
+;; the hits are written in chunks, so there is never a String with the
+;; whole response in it
+
+(defn json-chunks [result]
+  (let [hits (:hits result)]
+    (if (and (map? result) (sequential? hits))
+      (let [head (json/write-str (dissoc result :hits))]
+        (concat [(str (subs head 0 (dec (count head)))
+                      (if (= head "{}") "" ",")
+                      "\"hits\":[")]
+                (for [[i chunk] (indexed (partition-all default-response-chunk-hits hits))]
+                  (str (if (= i 0) "" ",")
+                       (join "," (map json/write-str chunk))))
+                ["]}"]))
+      (json/write-str result))))
@@ -1,10 +1,14 @@
 (ns bzzz.queries.constant-score
-  (:import (org.apache.lucene.search ConstantScoreQuery Query)))
+  (use bzzz.filter-cache)
+  (:import (org.apache.lucene.search ConstantScoreQuery Query Filter)))
 
 (defn parse
   [generic input analyzer]
   (let [{:keys [query boost]
          :or {boost 1}} input
-         q (ConstantScoreQuery. ^Query (generic query analyzer))]
+         parsed ^Query (generic query analyzer)
+         q (if-let [filter (cached-filter query parsed analyzer)]
+             (ConstantScoreQuery. ^Filter filter)
+             (ConstantScoreQuery. parsed))]
     (.setBoost q boost)
     q))
@@ -4,7 +4,7 @@
            (org.apache.lucene.queries.function ValueSource FunctionValues)
            (org.apache.lucene.expressions Expression SimpleBindings)
            (org.apache.lucene.index AtomicReaderContext)
-           (java.util Map)
+           (java.util Map HashMap)
            (org.apache.lucene.util Bits)))
 
 (defn expr-score-query [^Query subq ^ValueSource vs]
@@ -15,10 +15,13 @@
             fcontext (ValueSource/newContext searcher)
             vs-weight (.createWeight vs fcontext searcher)
             new-scorer (fn [^AtomicReaderContext reader-ctx ^Bits acceptDocs]
-                         (let [sub-scorer ^Scorer (.scorer sub-weight reader-ctx acceptDocs)]
-                           (.put fcontext "scorer" sub-scorer)
+                         ;; the scorer goes in a copy of the context, segments
+                         ;; of the same shard can be scored in parallel
+                         (let [sub-scorer ^Scorer (.scorer sub-weight reader-ctx acceptDocs)
+                               leaf-context (HashMap. ^Map fcontext)]
+                           (.put leaf-context "scorer" sub-scorer)
                            (if sub-scorer
-                             [sub-scorer (.getValues vs fcontext reader-ctx)]
+                             [sub-scorer (.getValues vs leaf-context reader-ctx)]
                              [nil nil])))]
         (proxy [Weight][]
           (explain [^AtomicReaderContext reader-ctx doc]
@@ -1,11 +1,12 @@
 (ns bzzz.queries.filtered
-  (:import (org.apache.lucene.search FilteredQuery QueryWrapperFilter)))
+  (use bzzz.filter-cache)
+  (:import (org.apache.lucene.search FilteredQuery Query)))
 
 (defn parse
   [generic input analyzer ]
   (let [{:keys [query filter boost]
          :or {boost 1}} input
          q (FilteredQuery. (generic query analyzer)
-                           (QueryWrapperFilter. (generic filter analyzer)))]
+                           (query->filter filter (generic filter analyzer) analyzer))]
     (.setBoost q boost)
     q))
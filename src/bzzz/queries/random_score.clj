@@ -1,10 +1,11 @@
 (ns bzzz.queries.random-score
   (:import (org.apache.lucene.search Query IndexSearcher Weight Scorer Explanation ComplexExplanation)
            (org.apache.lucene.index AtomicReaderContext)
-           (org.apache.lucene.util Bits)))
+           (org.apache.lucene.util Bits)
+           (bzzz.java.query NonDeterministic)))
   
 (defn random-score-query [^Query subq base]
-  (proxy [Query] []
+  (proxy [Query NonDeterministic] []
     (toString [] "random")
     (createWeight [^IndexSearcher searcher]
       (let [sub-weight (.createWeight subq searcher)]
@@ -4,11 +4,11 @@
   (:require [bzzz.cached-eval :as cached-eval])
   (:require [bzzz.index-stat :as index-stat])
   (:import (org.apache.lucene.index Term)
-           (org.apache.lucene.search MatchAllDocsQuery)
+           (org.apache.lucene.search MatchAllDocsQuery IndexSearcher)
            (bzzz.java.query TermPayloadClojureScoreQuery NoZeroQuery ExpressionContext Helper)))
 
-(defn fixed-bucket-aggregation-result [^TermPayloadClojureScoreQuery query]
-  (let [fba (.fba_get_results query)]
+(defn fixed-bucket-aggregation-result [^TermPayloadClojureScoreQuery query ^IndexSearcher searcher]
+  (let [fba (.fba_get_results query searcher)]
     (zipmap (.keySet fba)
             (map (fn [f]
                    (map (fn [^java.util.HashMap v]
@@ -17,8 +17,8 @@
                         (into [] f)))
                  (.values fba)))))
 
-(defn extract-result-state [^TermPayloadClojureScoreQuery query doc-id]
-  (.result_state_get_for_doc query doc-id))
+(defn extract-result-state [^TermPayloadClojureScoreQuery query ^IndexSearcher searcher doc-id]
+  (.result_state_get_for_doc query searcher doc-id))
 
 (defn parse
   [generic input analyzer]
@@ -33,7 +33,7 @@
     (let [tokens (if tokenize
                    (Helper/tokenize field value analyzer)
                    (if (seq? value) value [value]))
-          expr (cached-eval/get-or-eval clj-eval)
+          expr (cached-eval/get-or-eval-scorer clj-eval)
           arguments (if args-init-expr
                       ((cached-eval/get-or-eval args-init-expr) args)
                        nil)]
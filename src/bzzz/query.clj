@@ -1,5 +1,6 @@
 (ns bzzz.query
   (use bzzz.util)
+  (use bzzz.const)
   (use bzzz.analyzer)
   (require clojure.string)
   (require bzzz.queries.match-all)
@@ -19,7 +20,9 @@
   (require bzzz.queries.no-zero-score)
   (require bzzz.queries.no-norm)
   (:import (org.apache.lucene.search Query BooleanQuery BooleanClause$Occur)
-           (bzzz.java.query NoZeroQuery NoNormQuery TermPayloadClojureScoreQuery Helper)
+           (bzzz.java.query NoZeroQuery NoNormQuery TermPayloadClojureScoreQuery NonDeterministic Helper)
+           (java.util.concurrent.atomic AtomicLong)
+           (com.googlecode.concurrentlinkedhashmap ConcurrentLinkedHashMap ConcurrentLinkedHashMap$Builder)
            (org.apache.lucene.analysis Analyzer)))
 
 (declare resolve-and-call)
@@ -50,17 +53,54 @@
 (defn hack-extract-hackish-queries [^Query top]
   (Helper/collect_possible_subqueries top nil TermPayloadClojureScoreQuery))
 
-(defn hack-merge-dynamic-facets-counts [queries]
+(defn non-deterministic? [^Query top]
+  (not (.isEmpty (Helper/collect_possible_subqueries top nil NonDeterministic))))
+
+;; parsed queries are cached by the canonical json of the query and the
+;; analyzer (compared by identity, analyzers are cached by definition),
+;; so every shard of every request with the same query shares one Query
+;; instead of resolving and rebuilding the tree. Queries are not changed
+;; by searching (TermPayloadClojureScoreQuery keeps its state in the
+;; searcher), but init-clj-eval is run when parsing, so queries using it
+;; are not cached to keep running it on every request.
+(def query-cache-hits (AtomicLong. 0))
+(def query-cache-misses (AtomicLong. 0))
+
+(defonce ^ConcurrentLinkedHashMap query-cache
+  (.build (doto (ConcurrentLinkedHashMap$Builder.)
+            (.maximumWeightedCapacity default-query-cache-size))))
+
+(defn cached-parse-query ^Query [input ^Analyzer analyzer]
+  (let [k [(canonical-json input) analyzer]]
+    (if-let [query (.get query-cache k)]
+      (do
+        (.incrementAndGet ^AtomicLong query-cache-hits)
+        query)
+      (let [query (parse-query input analyzer)]
+        (.incrementAndGet ^AtomicLong query-cache-misses)
+        (when-not (some #{:init-clj-eval "init-clj-eval"} (tree-seq coll? seq input))
+          (.put query-cache k query))
+        query))))
+
+(defn set-query-cache-size [n]
+  (.setCapacity query-cache (long n)))
+
+(defn query-cache-stat []
+  {:hits (.get ^AtomicLong query-cache-hits)
+   :misses (.get ^AtomicLong query-cache-misses)
+   :size (.size query-cache)})
+
+(defn hack-merge-dynamic-facets-counts [queries searcher]
   (reduce (fn [sum ^TermPayloadClojureScoreQuery query]
-            (merge sum (bzzz.queries.term-payload-clj-score/fixed-bucket-aggregation-result query)))
+            (merge sum (bzzz.queries.term-payload-clj-score/fixed-bucket-aggregation-result query searcher)))
           {}
           queries))
 
-(defn hack-merge-result-state [queries doc-id doc]
+(defn hack-merge-result-state [queries searcher doc-id doc]
   (if (> (count queries) 0)
     (assoc doc :_result_state
            (reduce (fn [sum ^TermPayloadClojureScoreQuery query]
-                     (if-let [state (bzzz.queries.term-payload-clj-score/extract-result-state query doc-id)]
+                     (if-let [state (bzzz.queries.term-payload-clj-score/extract-result-state query searcher doc-id)]
                        (conj sum state)
                        sum))
                    []
@@ -65,6 +65,12 @@
       (doto (.setAccessible true))
       (.get obj)))
 
+;; string sort values come back as BytesRef
+(extend org.apache.lucene.util.BytesRef
+  json/JSONWriter
+  {:-write (fn [^org.apache.lucene.util.BytesRef x out]
+             (json/-write (.utf8ToString x) out))})
+
 (defn jr [body]
   (json/read-str body :key-fn keyword))
 
@@ -117,6 +123,9 @@
     false
     true))
 
+(defn doc-values? [name]
+  (substring? "_dv" name))
+
 (defn numeric? [name]
   (or (index_integer? name)
       (index_float? name)
@@ -232,3 +241,16 @@
         (let [obj (Object.)]
           (swap! container* assoc key obj)
           obj)))))
+
+(defn canonical [x]
+  (cond
+   (map? x) (into (sorted-map) (for [[k v] x] [(as-str k) (canonical v)]))
+   (sequential? x) (mapv canonical x)
+   (keyword? x) (as-str x)
+   :else x))
+
+(defn canonical-json
+  "json with sorted keys and keywords as strings, for cache keys where
+  {:a 1 :b 2} and {\"b\" 2 \"a\" 1} are the same thing"
+  ^String [x]
+  (json/write-str (canonical x)))
@@ -0,0 +1,129 @@
+package bzzz.java.query;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import org.apache.lucene.util.BytesRef;
+
+// the code tokenizer stores its bitmaps with writeExternal on an
+// ObjectOutputStream (see Helper.serialize_compressed_bitmap), which is
+// the stream header followed by the data split in blocks of at most 1024
+// bytes. this reads the data of the blocks straight from the payload, so
+// a bitmap can be deserialized per document without creating streams.
+// only the primitive reads EWAHCompressedBitmap.deserialize uses are
+// supported, reset() returns false if the payload is not plain block data.
+public class BlockDataInput implements DataInput {
+    byte[] bytes;
+    int pos;
+    int end;
+    int block_end;
+
+    public boolean reset(BytesRef p) {
+        bytes = p.bytes;
+        pos = p.offset;
+        end = p.offset + p.length;
+        block_end = pos;
+        if (p.length < 4 || short_at(pos) != ObjectStreamConstants.STREAM_MAGIC || short_at(pos + 2) != ObjectStreamConstants.STREAM_VERSION)
+            return false;
+        pos += 4;
+        block_end = pos;
+        // check the framing up front, so reading can not fail half way
+        int at = pos;
+        while (at < end) {
+            int len;
+            if (bytes[at] == ObjectStreamConstants.TC_BLOCKDATA && at + 1 < end) {
+                len = bytes[at + 1] & 0xFF;
+                at += 2;
+            } else if (bytes[at] == ObjectStreamConstants.TC_BLOCKDATALONG && at + 4 < end) {
+                len = int_at(at + 1);
+                at += 5;
+            } else {
+                return false;
+            }
+            if (len < 0 || len > end - at)
+                return false;
+            at += len;
+        }
+        return true;
+    }
+
+    int short_at(int at) {
+        return (short) (((bytes[at] & 0xFF) << 8) | (bytes[at + 1] & 0xFF));
+    }
+
+    int int_at(int at) {
+        return ((bytes[at] & 0xFF) << 24) | ((bytes[at + 1] & 0xFF) << 16) | ((bytes[at + 2] & 0xFF) << 8) | (bytes[at + 3] & 0xFF);
+    }
+
+    void next_block() throws IOException {
+        if (pos >= end)
+            throw new IOException("end of block data");
+        if (bytes[pos] == ObjectStreamConstants.TC_BLOCKDATA) {
+            block_end = pos + 2 + (bytes[pos + 1] & 0xFF);
+            pos += 2;
+        } else {
+            block_end = pos + 5 + int_at(pos + 1);
+            pos += 5;
+        }
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        while (pos == block_end)
+            next_block();
+        return bytes[pos++];
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        if (block_end - pos >= 4) {
+            int v = int_at(pos);
+            pos += 4;
+            return v;
+        }
+        // split between two blocks
+        return ((readByte() & 0xFF) << 24) | ((readByte() & 0xFF) << 16) | ((readByte() & 0xFF) << 8) | (readByte() & 0xFF);
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        for (int i = 0; i < len; i++)
+            b[off + i] = readByte();
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        for (int i = 0; i < n; i++)
+            readByte();
+        return n;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException { return readByte() != 0; }
+    @Override
+    public int readUnsignedByte() throws IOException { return readByte() & 0xFF; }
+    @Override
+    public short readShort() throws IOException { return (short) readUnsignedShort(); }
+    @Override
+    public int readUnsignedShort() throws IOException { return ((readByte() & 0xFF) << 8) | (readByte() & 0xFF); }
+    @Override
+    public char readChar() throws IOException { return (char) readUnsignedShort(); }
+    @Override
+    public float readFloat() throws IOException { return Float.intBitsToFloat(readInt()); }
+    @Override
+    public double readDouble() throws IOException { return Double.longBitsToDouble(readLong()); }
+    @Override
+    public String readLine() throws IOException { throw new IOException("not block data"); }
+    @Override
+    public String readUTF() throws IOException { throw new IOException("not block data"); }
+}
@@ -0,0 +1,46 @@
+package bzzz.java.query;
+
+import java.io.IOException;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+
+// filter whose per segment doc id sets come from FilterCache, key is the
+// canonical json of the filter clause
+public class CachedFilter extends Filter {
+    public final String key;
+    public final Object analyzer;
+    public final Filter filter;
+
+    public CachedFilter(String key, Object analyzer, Filter filter) {
+        this.key = key;
+        this.analyzer = analyzer;
+        this.filter = filter;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        DocIdSet set = FilterCache.get(key, analyzer, filter, context);
+        return BitsFilteredDocIdSet.wrap(set == DocIdSet.EMPTY ? null : set, acceptDocs);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CachedFilter))
+            return false;
+        CachedFilter other = (CachedFilter) o;
+        return analyzer == other.analyzer && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode() * 31 + System.identityHashCode(analyzer);
+    }
+
+    @Override
+    public String toString() {
+        return "cached(" + filter.toString() + ")";
+    }
+}
@@ -19,6 +19,7 @@ public class ExpressionContext {
     public int doc_id;
     public int global_doc_id;
     public Map<Term,CollectionStatistics>  collection_statistics = new HashMap<Term,CollectionStatistics>();
+    public Map<Term,Long> doc_freq = new HashMap<Term,Long>();
     public List<PerTerm> per_term = new ArrayList<PerTerm>();
     public float current_score = 0f;
     public long current_counter = 0;
@@ -26,13 +27,21 @@ public class ExpressionContext {
     public int[] fba_counts = null;
     public int fba_max_buckets_per_aggregation = 0;
     public Map<String,Object> fc = new HashMap<String,Object>();
+    // the same values by their position in the field cache request, see fc_int()
+    public Ints[] fc_ints;
+    public Longs[] fc_longs;
+    public Floats[] fc_floats;
+    public Doubles[] fc_doubles;
     public Map<Integer,List<Object>> result_state = null;
     public Map<Object,Object> local_state;
     public Map<Object,Object> global_state;
     public APersistentMap global_state_ro;
 
+    EWAHCompressedBitmap[] maps = null;
+    // the returned array is reused by the next call
     public EWAHCompressedBitmap[] context_collect_bitmaps() throws IOException {
-        EWAHCompressedBitmap[] maps = new EWAHCompressedBitmap[per_term.size()];
+        if (maps == null || maps.length != per_term.size())
+            maps = new EWAHCompressedBitmap[per_term.size()];
         for (int i = 0; i < per_term.size(); i++) {
             maps[i] = per_term.get(i).bitmap_from_payload();
         }
@@ -53,17 +62,26 @@ public class ExpressionContext {
         this.global_state_ro = global_state_ro;
     }
 
+    // FieldCache returns a view over the segment's doc values when the
+    // field has them (fields with _dv in the name), otherwise it
+    // uninverts the field into arrays on the heap
     public void fill_field_cache(AtomicReader r, String[] field_cache_req) throws IOException {
         if (field_cache_req != null) {
-            for (String name : field_cache_req) {
+            int n = field_cache_req.length;
+            fc_ints = new Ints[n];
+            fc_longs = new Longs[n];
+            fc_floats = new Floats[n];
+            fc_doubles = new Doubles[n];
+            for (int i = 0; i < n; i++) {
+                String name = field_cache_req[i];
                 if (name.indexOf("_int") != -1)
-                    fc.put(name,FieldCache.DEFAULT.getInts(r,name,false));
+                    fc.put(name,fc_ints[i] = FieldCache.DEFAULT.getInts(r,name,false));
                 else if (name.indexOf("_long") != -1)
-                    fc.put(name,FieldCache.DEFAULT.getLongs(r,name,false));
+                    fc.put(name,fc_longs[i] = FieldCache.DEFAULT.getLongs(r,name,false));
                 else if (name.indexOf("_float") != -1)
-                    fc.put(name,FieldCache.DEFAULT.getFloats(r,name,false));
+                    fc.put(name,fc_floats[i] = FieldCache.DEFAULT.getFloats(r,name,false));
                 else if (name.indexOf("_double") != -1)
-                    fc.put(name,FieldCache.DEFAULT.getDoubles(r,name,false));
+                    fc.put(name,fc_doubles[i] = FieldCache.DEFAULT.getDoubles(r,name,false));
                 else
                     throw new IOException(name + " can only get field cache for _int|_long|_float|_double");
             }
@@ -136,6 +154,13 @@ public class ExpressionContext {
         return fc_get_long(name,doc_id);
     }
 
+    // by position in the field cache request, without the map lookup:
+    // with "field-cache":["a_int","b_float"] (.fc_int ctx 0) is a_int
+    public int fc_int(int index) { return fc_ints[index].get(doc_id); }
+    public long fc_long(int index) { return fc_longs[index].get(doc_id); }
+    public float fc_float(int index) { return fc_floats[index].get(doc_id); }
+    public double fc_double(int index) { return fc_doubles[index].get(doc_id); }
+
     public float fc_get_float(String name,int doc) {
         Floats f = (Floats) fc.get(name);
         return f.get(doc);
@@ -278,12 +303,19 @@ public class ExpressionContext {
         public int payload_get_int() throws IOException {
             return Helper.decode_int_payload(payload());
         }
+        final BlockDataInput block_input = new BlockDataInput();
+        // the returned bitmap is reused for the next document, its words
+        // are read into the same buffer when they fit
         public EWAHCompressedBitmap bitmap_from_payload() throws IOException{
             bitmap.clear();
             BytesRef p = payload();
             if (p != null) {
-                ByteArrayInputStream bis = new ByteArrayInputStream(p.bytes,p.offset,p.bytes.length);
-                bitmap.readExternal(new ObjectInputStream(bis));
+                if (block_input.reset(p)) {
+                    bitmap.deserialize(block_input);
+                } else {
+                    ByteArrayInputStream bis = new ByteArrayInputStream(p.bytes,p.offset,p.length);
+                    bitmap.readExternal(new ObjectInputStream(bis));
+                }
             }
             return bitmap;
         }
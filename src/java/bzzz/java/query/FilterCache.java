@@ -0,0 +1,156 @@
+package bzzz.java.query;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.WAH8DocIdSet;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+// shared (per jvm) LRU cache of filter doc id sets per segment, bounded
+// by their size in bytes, like CachingWrapperFilter but with one bound
+// for all filters of all shards.
+// the sets are cached per segment core and without deletions (they are
+// applied at search time), so a refresh only drops the segments that
+// were merged away, when their core is closed.
+public class FilterCache {
+    public static final long DEFAULT_CAPACITY = 64L * 1024L * 1024L;
+
+    public static final AtomicLong hits = new AtomicLong(0);
+    public static final AtomicLong misses = new AtomicLong(0);
+    public static final AtomicLong evictions = new AtomicLong(0);
+    public static final AtomicLong invalidations = new AtomicLong(0);
+
+    // the keys cached for every segment core, so closing a core removes
+    // only its own entries. A core gets its close listener before its
+    // first entry is put in the cache.
+    static final ConcurrentHashMap<Object, Set<Key>> keys_by_core = new ConcurrentHashMap<Object, Set<Key>>();
+
+    static final ConcurrentLinkedHashMap<Key, DocIdSet> cache =
+        new ConcurrentLinkedHashMap.Builder<Key, DocIdSet>()
+        .maximumWeightedCapacity(DEFAULT_CAPACITY)
+        .weigher(new Weigher<DocIdSet>() {
+                public int weightOf(DocIdSet value) {
+                    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, value.ramBytesUsed()));
+                }
+            })
+        .listener(new EvictionListener<Key, DocIdSet>() {
+                public void onEviction(Key key, DocIdSet value) {
+                    evictions.incrementAndGet();
+                    Set<Key> keys = keys_by_core.get(key.core);
+                    if (keys != null)
+                        keys.remove(key);
+                }
+            })
+        .build();
+
+    // the analyzer is compared by identity, analyzers are cached by
+    // their definition so the same definition gives the same object
+    static final class Key {
+        final String filter;
+        final Object analyzer;
+        final Object core;
+
+        Key(String filter, Object analyzer, Object core) {
+            this.filter = filter;
+            this.analyzer = analyzer;
+            this.core = core;
+        }
+
+        @Override
+        public int hashCode() {
+            return (filter.hashCode() * 31 + System.identityHashCode(analyzer)) * 31 + System.identityHashCode(core);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return analyzer == k.analyzer && core == k.core && filter.equals(k.filter);
+        }
+    }
+
+    public static void setCapacity(long bytes) {
+        cache.setCapacity(bytes);
+    }
+
+    static DocIdSet toCache(DocIdSet set) throws IOException {
+        if (set == null)
+            return DocIdSet.EMPTY;
+        if (set.isCacheable())
+            return set;
+        DocIdSetIterator it = set.iterator();
+        if (it == null)
+            return DocIdSet.EMPTY;
+        return new WAH8DocIdSet.Builder().add(it).build();
+    }
+
+    static void invalidate(Object core) {
+        Set<Key> keys = keys_by_core.remove(core);
+        if (keys == null)
+            return;
+        for (Key k : keys) {
+            if (cache.remove(k) != null)
+                invalidations.incrementAndGet();
+        }
+    }
+
+    static Set<Key> keys_of(AtomicReader reader, Object core) {
+        Set<Key> keys = keys_by_core.get(core);
+        if (keys != null)
+            return keys;
+        synchronized (keys_by_core) {
+            keys = keys_by_core.get(core);
+            if (keys == null) {
+                keys = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+                reader.addCoreClosedListener(new AtomicReader.CoreClosedListener() {
+                        public void onClose(Object ownerCoreCacheKey) {
+                            invalidate(ownerCoreCacheKey);
+                        }
+                    });
+                keys_by_core.put(core, keys);
+            }
+            return keys;
+        }
+    }
+
+    // the doc id set of filter on this segment, without deletions
+    public static DocIdSet get(String key, Object analyzer, Filter filter, AtomicReaderContext context) throws IOException {
+        AtomicReader reader = context.reader();
+        Object core = reader.getCoreCacheKey();
+        Key k = new Key(key, analyzer, core);
+        DocIdSet set = cache.get(k);
+        if (set != null) {
+            hits.incrementAndGet();
+            return set;
+        }
+        misses.incrementAndGet();
+        set = toCache(filter.getDocIdSet(context, null));
+        keys_of(reader, core).add(k);
+        cache.put(k, set);
+        return set;
+    }
+
+    public static Map<String, Long> stats() {
+        Map<String, Long> m = new HashMap<String, Long>();
+        m.put("hits", hits.get());
+        m.put("misses", misses.get());
+        m.put("evictions", evictions.get());
+        m.put("invalidations", invalidations.get());
+        m.put("entries", (long) cache.size());
+        m.put("bytes", cache.weightedSize());
+        m.put("capacity", cache.capacity());
+        return m;
+    }
+}
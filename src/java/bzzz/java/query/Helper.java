@@ -43,6 +43,10 @@ public class Helper {
     public static List<Query> collect_possible_subqueries(Query top, List<Query> result, Class filter) {
         if (result == null)
             result = new ArrayList<Query>();
+        if (top == null) {
+            // ConstantScoreQuery over a (cached) filter has no query
+            return result;
+        }
         if (top instanceof BooleanQuery) {
             for (BooleanClause bq : ((BooleanQuery)top).clauses())
                 collect_possible_subqueries(bq.getQuery(), result, filter);
@@ -56,12 +60,24 @@ public class Helper {
         } else if (top instanceof NoNormQuery) {
             collect_possible_subqueries(((NoNormQuery)top).query, result,filter);
         } else {
-            if (filter == null || top.getClass() == filter)
+            if (filter == null || filter.isInstance(top))
                 result.add(top);
         }
         return result;
     }
 
+    // the terms of the leaves of a (rewritten) query, leaves that can not
+    // tell their terms (e.g. not rewritten multi term queries) are skipped
+    public static Set<Term> collect_terms(Query top, Set<Term> terms) {
+        for (Query q : collect_possible_subqueries(top, null, null)) {
+            try {
+                q.extractTerms(terms);
+            } catch (UnsupportedOperationException e) {
+            }
+        }
+        return terms;
+    }
+
     public static float object_to_float(Object s) {
         if (s instanceof Integer)
             return ((Integer) s).floatValue();
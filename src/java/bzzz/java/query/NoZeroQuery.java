@@ -14,6 +14,9 @@ public class NoZeroQuery extends Query {
     @Override
     public String toString(String field) { return "no-zero:" + query.toString(field); }
 
+    @Override
+    public void extractTerms(java.util.Set<Term> terms) { query.extractTerms(terms); }
+
     @Override
     public Weight createWeight(IndexSearcher searcher) throws IOException {
         final Weight weight = query.createWeight(searcher);
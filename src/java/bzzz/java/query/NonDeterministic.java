@@ -0,0 +1,6 @@
+package bzzz.java.query;
+
+// marker for queries that can score the same documents differently on
+// every search (like random-score), their results are never cached
+public interface NonDeterministic {
+}
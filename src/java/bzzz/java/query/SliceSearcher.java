@@ -0,0 +1,112 @@
+package bzzz.java.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+
+// IndexSearcher only parallelizes its own top-docs collectors, so to
+// search a shard's segments in parallel with our own collectors we need
+// the protected per-leaves search: every slice gets its own collectors
+// and the results are merged afterwards.
+// one is created per search, so it also holds the per search state of
+// the queries that need one (see TermPayloadClojureScoreQuery.state)
+public class SliceSearcher extends IndexSearcher {
+    // by identity, Query.equals only compares the class and the boost
+    final Map<Object,Object> states = new IdentityHashMap<Object,Object>();
+
+    // statistics gathered from all shards (and peers) for this search,
+    // they replace the ones of this shard so every shard scores the same
+    Map<Term,TermStatistics> global_terms = null;
+    Map<String,CollectionStatistics> global_fields = null;
+
+    public SliceSearcher(IndexSearcher searcher) {
+        super(searcher.getTopReaderContext());
+        setSimilarity(searcher.getSimilarity());
+    }
+
+    public void set_global_statistics(Map<Term,TermStatistics> terms, Map<String,CollectionStatistics> fields) {
+        global_terms = terms;
+        global_fields = fields;
+    }
+
+    public TermStatistics global_term_statistics(Term term) {
+        return global_terms == null ? null : global_terms.get(term);
+    }
+
+    @Override
+    public TermStatistics termStatistics(Term term, TermContext context) throws IOException {
+        TermStatistics global = global_term_statistics(term);
+        return global == null ? super.termStatistics(term, context) : global;
+    }
+
+    @Override
+    public CollectionStatistics collectionStatistics(String field) throws IOException {
+        CollectionStatistics global = global_fields == null ? null : global_fields.get(field);
+        return global == null ? super.collectionStatistics(field) : global;
+    }
+
+    // the state of key in this search, initial if there is none yet
+    public synchronized Object state(Object key, Object initial) {
+        Object existing = states.get(key);
+        if (existing != null)
+            return existing;
+        states.put(key, initial);
+        return initial;
+    }
+
+    @Override
+    public void search(List<AtomicReaderContext> leaves, Weight weight, Collector collector) throws IOException {
+        super.search(leaves, weight, collector);
+    }
+
+    // splits the leaves in at most n contiguous slices with roughly the
+    // same number of documents, contiguous so that merging the slices
+    // in order breaks score ties by doc id, like a sequential search
+    public static List<List<AtomicReaderContext>> slices(List<AtomicReaderContext> leaves, int n) {
+        long total = 0;
+        for (AtomicReaderContext ctx : leaves)
+            total += ctx.reader().maxDoc();
+        long target = Math.max(1, total / Math.max(1, n));
+
+        List<List<AtomicReaderContext>> slices = new ArrayList<List<AtomicReaderContext>>();
+        List<AtomicReaderContext> current = new ArrayList<AtomicReaderContext>();
+        long docs = 0;
+        for (AtomicReaderContext ctx : leaves) {
+            current.add(ctx);
+            docs += ctx.reader().maxDoc();
+            if (docs >= target && slices.size() < n - 1) {
+                slices.add(current);
+                current = new ArrayList<AtomicReaderContext>();
+                docs = 0;
+            }
+        }
+        if (!current.isEmpty())
+            slices.add(current);
+        return slices;
+    }
+
+    // the facet counters only look at the per-segment matching docs, so
+    // the slices' collectors can be merged by concatenating them
+    public static FacetsCollector merge(final List<FacetsCollector> collectors) {
+        final List<FacetsCollector.MatchingDocs> all = new ArrayList<FacetsCollector.MatchingDocs>();
+        for (FacetsCollector fc : collectors)
+            all.addAll(fc.getMatchingDocs());
+        return new FacetsCollector() {
+            @Override
+            public List<FacetsCollector.MatchingDocs> getMatchingDocs() {
+                return all;
+            }
+        };
+    }
+}
@@ -5,6 +5,7 @@ import org.apache.lucene.search.*;
 import org.apache.lucene.util.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import clojure.lang.RT;
 import clojure.lang.Var;
 import clojure.lang.IFn;
@@ -19,8 +20,12 @@ import bzzz.java.query.ExpressionContext;
 import bzzz.java.query.ExpressionContext.*;
 
 public class TermPayloadClojureScoreQuery extends Query {
-    // THIS QUERY IS NOT THREAD SAFE! at the moment this is ok because of the way we create one (future) per shard
-    // and the query is created in the (future) thread itself.
+    // the query itself is not changed by searching, so it can be cached and
+    // shared between threads and segments. the state of a search (local
+    // state, fixed bucket counts and result state) is kept per searcher,
+    // see state(), and the counts and result state are kept per segment and
+    // merged when they are read, so a parallel segment search gives the
+    // same output as a sequential one.
 
     public static int GLOBAL_STATE_CAPACITY = 100000; // TODO: make this a parameter
 
@@ -38,12 +43,9 @@ public class TermPayloadClojureScoreQuery extends Query {
     public IFn clj_expr;
     public Object args;
 
-    public Map<Integer,List<Object>> result_state = new HashMap<Integer,List<Object>>();
-
     public List<Map<Object,Object>> fba_settings = null;
-    public int[] fba_counts = null;
     int fba_max_buckets_per_aggregation = 0;
-    public Map<Object,Object> local_state = new HashMap<Object,Object>(1000);
+    int fba_size = 0;
 
     public static final Keyword FBA_KW_NAME = Keyword.intern(null, "name");
     public static final Keyword FBA_KW_BUCKETS = Keyword.intern(null, "buckets");
@@ -58,8 +60,73 @@ public class TermPayloadClojureScoreQuery extends Query {
             fba_initialize();
     }
 
-    public List<Object> result_state_get_for_doc(Integer doc) {
-        return result_state.get(doc);
+    // per segment part of a search's state, a segment is scored by one
+    // thread at a time so these need no locking
+    public static final class LeafState {
+        public final int ord;
+        public final int[] fba_counts;
+        public final Map<Integer,List<Object>> result_state = new HashMap<Integer,List<Object>>();
+
+        LeafState(int ord, int fba_size) {
+            this.ord = ord;
+            this.fba_counts = fba_size > 0 ? new int[fba_size] : null;
+        }
+    }
+
+    public static final class State {
+        final int fba_size;
+        final ConcurrentHashMap<Integer,LeafState> leaves = new ConcurrentHashMap<Integer,LeafState>();
+        public final Map<Object,Object> local_state = Collections.synchronizedMap(new HashMap<Object,Object>(1000));
+
+        State(int fba_size) {
+            this.fba_size = fba_size;
+        }
+
+        public LeafState leaf(int ord) {
+            LeafState leaf = leaves.get(ord);
+            if (leaf == null) {
+                LeafState created = new LeafState(ord, fba_size);
+                leaf = leaves.putIfAbsent(ord, created);
+                if (leaf == null)
+                    leaf = created;
+            }
+            return leaf;
+        }
+
+        // leaves in segment order, so merging does not depend on which
+        // slice finished first
+        public List<LeafState> sorted_leaves() {
+            List<LeafState> sorted = new ArrayList<LeafState>(leaves.values());
+            Collections.sort(sorted, new Comparator<LeafState>() {
+                    @Override
+                    public int compare(LeafState a, LeafState b) {
+                        return Integer.compare(a.ord, b.ord);
+                    }
+                });
+            return sorted;
+        }
+    }
+
+    // the state of this query in the search done with searcher, searchers
+    // that are not SliceSearchers (created per search) get a private one
+    public State state(IndexSearcher searcher) {
+        State created = new State(fba_size);
+        if (searcher instanceof SliceSearcher)
+            return (State) ((SliceSearcher) searcher).state(this, created);
+        return created;
+    }
+
+    public List<Object> result_state_get_for_doc(IndexSearcher searcher, Integer doc) {
+        List<Object> result = null;
+        for (LeafState leaf : state(searcher).sorted_leaves()) {
+            List<Object> values = leaf.result_state.get(doc);
+            if (values != null) {
+                if (result == null)
+                    result = new ArrayList<Object>();
+                result.addAll(values);
+            }
+        }
+        return result;
     }
 
     // FIXED_BUCKET_AGGREGATION
@@ -86,13 +153,24 @@ public class TermPayloadClojureScoreQuery extends Query {
             if (buckets > fba_max_buckets_per_aggregation)
                 fba_max_buckets_per_aggregation = buckets;
         }
-        if (fba_max_buckets_per_aggregation > 0)
-            fba_counts = new int[fba_max_buckets_per_aggregation * fba_settings.size()];
+        fba_size = fba_max_buckets_per_aggregation * fba_settings.size();
+    }
+
+    public int[] fba_merged_counts(IndexSearcher searcher) {
+        if (fba_size == 0)
+            return null;
+        int[] fba_counts = new int[fba_size];
+        for (LeafState leaf : state(searcher).sorted_leaves()) {
+            for (int i = 0; i < fba_size; i++)
+                fba_counts[i] += leaf.fba_counts[i];
+        }
+        return fba_counts;
     }
 
-    public Map<String,List<Map<String,Integer>>> fba_get_results() {
+    public Map<String,List<Map<String,Integer>>> fba_get_results(IndexSearcher searcher) {
         Map<String,List<Map<String,Integer>>> result = new HashMap<String,List<Map<String,Integer>>>();
         int aggregation_index = 0;
+        int[] fba_counts = fba_merged_counts(searcher);
         if (fba_counts != null) {
             for (Map<Object,Object> item : fba_settings) {
                 List<Map<String,Integer>> value = new ArrayList<Map<String,Integer>>();
@@ -132,6 +210,11 @@ public class TermPayloadClojureScoreQuery extends Query {
         EXPR_GLOBAL_STATE_RO = replacement;
     }
 
+    @Override
+    public void extractTerms(Set<Term> into) {
+        into.addAll(terms);
+    }
+
     @Override
     public String toString(String field) {
         StringBuilder sb = new StringBuilder();
@@ -148,6 +231,25 @@ public class TermPayloadClojureScoreQuery extends Query {
     @Override
     public Weight createWeight(final IndexSearcher searcher) throws IOException {
         final Query query = this;
+        final State state = state(searcher);
+        final Map<Term,CollectionStatistics> collection_statistics = new HashMap<Term,CollectionStatistics>();
+        final Map<Term,Long> doc_freq = new HashMap<Term,Long>();
+        // the term contexts are built only without global statistics, and
+        // the sub scorers use their term states instead of seeking the
+        // terms again, so each term is looked up once per segment
+        final Map<Term,TermContext> term_contexts = new HashMap<Term,TermContext>();
+        for (Term t : terms) {
+            collection_statistics.put(t,searcher.collectionStatistics(t.field()));
+            TermStatistics ts = null;
+            if (searcher instanceof SliceSearcher)
+                ts = ((SliceSearcher) searcher).global_term_statistics(t);
+            if (ts == null) {
+                TermContext tc = TermContext.build(searcher.getTopReaderContext(),t);
+                term_contexts.put(t,tc);
+                ts = searcher.termStatistics(t,tc);
+            }
+            doc_freq.put(t,ts.docFreq());
+        }
         return new Weight() {
             public final Weight weight = this;
             @Override
@@ -160,14 +262,20 @@ public class TermPayloadClojureScoreQuery extends Query {
             public void normalize(float queryNorm, float topLevelBoost) {}
             @Override
             public ContextScorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
-                ContextScorer s = new ContextScorer(this, context,acceptDocs,field_cache_req,terms,args,clj_expr);
-                for (Term t : terms)
-                    s.clj_context.collection_statistics.put(t,searcher.collectionStatistics(t.field()));
-                s.clj_context.fba_counts = fba_counts;
-                s.clj_context.fba_max_buckets_per_aggregation = fba_max_buckets_per_aggregation;
-                s.clj_context.result_state = result_state;
-                s.clj_context.local_state = local_state;
-                return s;
+                LeafState leaf = state.leaf(context.ord);
+                ExpressionContext clj_context;
+                try {
+                    clj_context = new ExpressionContext(EXPR_GLOBAL_STATE,EXPR_GLOBAL_STATE_RO);
+                } catch(Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                clj_context.collection_statistics.putAll(collection_statistics);
+                clj_context.fba_counts = leaf.fba_counts;
+                clj_context.fba_max_buckets_per_aggregation = fba_max_buckets_per_aggregation;
+                clj_context.result_state = leaf.result_state;
+                clj_context.local_state = state.local_state;
+                clj_context.doc_freq = doc_freq;
+                return new ContextScorer(this, context,acceptDocs,field_cache_req,terms,term_contexts,args,clj_expr,clj_context);
             }
             @Override
             public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
@@ -188,32 +296,69 @@ public class TermPayloadClojureScoreQuery extends Query {
     public static final class ContextScorer extends Scorer {
         public ExpressionContext clj_context = null;
         final List<Scorer> scorers = new ArrayList<Scorer>();
+        // the sub scorers that are not exhausted, as a min heap on their
+        // doc id (like lucene's DisjunctionScorer), so moving to the next
+        // doc only touches the sub scorers on the current doc instead of
+        // all of them
+        Scorer[] heap;
+        int heap_size;
         int docBase;
         Object args;
         Weight weight;
         public IFn clj_expr;
-        public ContextScorer(Weight weight, AtomicReaderContext context, Bits acceptDocs,String[] field_cache_req, List<Term>terms, Object args,IFn clj_expr) throws IOException {
+        public ContextScorer(Weight weight, AtomicReaderContext context, Bits acceptDocs,String[] field_cache_req, List<Term>terms, Map<Term,TermContext> term_contexts, Object args,IFn clj_expr, ExpressionContext clj_context) throws IOException {
             super(weight);
             this.weight = weight;
             this.clj_expr = clj_expr;
             this.args = args;
-            try {
-                clj_context = new ExpressionContext(EXPR_GLOBAL_STATE,EXPR_GLOBAL_STATE_RO);
-                clj_context.total_term_count = terms.size();
-                clj_context.fill_field_cache(context.reader(),field_cache_req);
-                clj_context.per_term.clear();
-            } catch(Exception e) {
-                throw new IllegalStateException(e);
-            }
+            this.clj_context = clj_context;
+            clj_context.total_term_count = terms.size();
+            clj_context.fill_field_cache(context.reader(),field_cache_req);
+            clj_context.per_term.clear();
             for (int i = 0; i < terms.size(); i++) {
-                Scorer s = createSubScorer(context,acceptDocs,terms.get(i),i);
+                Scorer s = createSubScorer(context,acceptDocs,terms.get(i),term_contexts.get(terms.get(i)),i);
                 if (s != null)
                     scorers.add(s);
             }
+            // all sub scorers start at -1, so any order is a heap
+            heap = scorers.toArray(new Scorer[scorers.size()]);
+            heap_size = heap.length;
             docBase = context.docBase;
             this.args = args;
         }
 
+        void heap_down(int i) {
+            Scorer s = heap[i];
+            int doc = s.docID();
+            while (true) {
+                int child = (i << 1) + 1;
+                if (child >= heap_size)
+                    break;
+                if (child + 1 < heap_size && heap[child + 1].docID() < heap[child].docID())
+                    child++;
+                if (heap[child].docID() >= doc)
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = s;
+        }
+
+        // re-positions the top after it was moved to doc
+        void heap_top_moved(int doc) {
+            if (doc == NO_MORE_DOCS) {
+                heap_size--;
+                heap[0] = heap[heap_size];
+                heap[heap_size] = null;
+            }
+            if (heap_size > 0)
+                heap_down(0);
+        }
+
+        int heap_top_doc() {
+            return heap_size == 0 ? NO_MORE_DOCS : heap[0].docID();
+        }
+
         public int doc_id = -1;
         @Override
         public String toString() { return "scorer(" + weight.getQuery().toString() + ")"; }
@@ -222,8 +367,10 @@ public class TermPayloadClojureScoreQuery extends Query {
         @Override
         public int freq() throws IOException {
             int f = 0;
-            for (Scorer s : scorers)
-                f += s.freq();
+            for (int i = 0; i < heap_size; i++) {
+                if (heap[i].docID() == doc_id)
+                    f += heap[i].freq();
+            }
             return f;
         }
         @Override
@@ -235,47 +382,58 @@ public class TermPayloadClojureScoreQuery extends Query {
         }
         @Override
         public int nextDoc() throws IOException {
-            int newDoc = NO_MORE_DOCS;
-            for (Scorer sub : scorers) {
-                int curDoc = sub.docID();
-                if (curDoc==doc_id) curDoc = sub.nextDoc();
-                if (curDoc < newDoc) newDoc = curDoc;
-            }
-            this.doc_id = newDoc;
-            return newDoc;
+            if (doc_id == NO_MORE_DOCS)
+                return doc_id;
+            while (heap_size > 0 && heap[0].docID() == doc_id)
+                heap_top_moved(heap[0].nextDoc());
+            this.doc_id = heap_top_doc();
+            return doc_id;
         }
         @Override
         public int advance(int target) throws IOException {
-            int newDoc = NO_MORE_DOCS;
-            for (Scorer sub : scorers) {
-                int curDoc = sub.docID();
-                if (curDoc < target) curDoc = sub.advance(target);
-                if (curDoc < newDoc) newDoc = curDoc;
-            }
-            this.doc_id = newDoc;
-            return newDoc;
+            while (heap_size > 0 && heap[0].docID() < target)
+                heap_top_moved(heap[0].advance(target));
+            this.doc_id = heap_top_doc();
+            return doc_id;
         }
         @Override
         public float score() throws IOException {
             clj_context.reset();
             clj_context.doc_id = doc_id;
             clj_context.global_doc_id = doc_id + docBase;
-            if (args == null)
+            if (args == null) {
+                if (clj_expr instanceof IFn.OD)
+                    return (float) ((IFn.OD) clj_expr).invokePrim(clj_context);
                 return (float) clj_expr.invoke(clj_context);
+            }
+            if (clj_expr instanceof IFn.OOD)
+                return (float) ((IFn.OOD) clj_expr).invokePrim(clj_context,args);
             return (float) clj_expr.invoke(clj_context,args);
         }
 
-        public Scorer createSubScorer(AtomicReaderContext context, Bits acceptDocs, Term term,int pos) throws IOException {
+        public Scorer createSubScorer(AtomicReaderContext context, Bits acceptDocs, Term term, TermContext term_context, int pos) throws IOException {
+            if (term_context != null && term_context.topReaderContext == ReaderUtil.getTopLevelContext(context)) {
+                if (term_context.get(context.ord) == null)
+                    return null;
+            } else {
+                term_context = null;
+            }
+
             Terms terms = context.reader().terms(term.field());
             if (terms == null)
                 return null;
 
             final TermsEnum termsEnum = terms.iterator(null);
-            if (!termsEnum.seekExact(term.bytes()))
-                return null;
+            final TermState state;
+            if (term_context != null) {
+                state = term_context.get(context.ord);
+            } else {
+                if (!termsEnum.seekExact(term.bytes()))
+                    return null;
+                state = termsEnum.termState();
+            }
 
             final Weight weight = this.weight;
-            final TermState state = termsEnum.termState();
             termsEnum.seekExact(term.bytes(), state);
             final DocsAndPositionsEnum postings = termsEnum.docsAndPositions(acceptDocs, null, DocsAndPositionsEnum.FLAG_PAYLOADS);
             if (postings == null)
@@ -283,7 +441,8 @@ public class TermPayloadClojureScoreQuery extends Query {
 
             PerTerm pt = new PerTerm();
             pt.postings = postings;
-            pt.doc_freq = termsEnum.docFreq(); // FIXME: the number here is completely wrong, it is just from the local segment. wrong, poc
+            // of the whole shard (or of all shards with global statistics), not of this segment
+            pt.doc_freq = clj_context.doc_freq.get(term).intValue();
             pt.per_term_collection_statistics = clj_context.collection_statistics.get(term);
             pt.token_position = pos;
             clj_context.per_term.add(pt);
@@ -0,0 +1,119 @@
+package bzzz.java.store;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+// shared (per jvm) LRU cache of file blocks read from redis, bounded by
+// the number of cached bytes.
+// lucene never rewrites a file with the same name (except segments.gen,
+// which is never cached), so blocks can only become stale when a file
+// is deleted or created again, in which case the file gets a new
+// version on the next open and the old blocks just age out of the LRU.
+public class RedisBlockCache {
+    public static final long DEFAULT_CAPACITY = 256L * 1024L * 1024L;
+    public static volatile int PREFETCH_BLOCKS = 4;
+
+    public static final AtomicLong hits = new AtomicLong(0);
+    public static final AtomicLong misses = new AtomicLong(0);
+    public static final AtomicLong prefetched = new AtomicLong(0);
+    public static final AtomicLong evictions = new AtomicLong(0);
+
+    static final AtomicLong nextVersion = new AtomicLong(0);
+    static final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<String, Long>();
+
+    static final ConcurrentLinkedHashMap<Key, byte[]> cache =
+        new ConcurrentLinkedHashMap.Builder<Key, byte[]>()
+        .maximumWeightedCapacity(DEFAULT_CAPACITY)
+        .weigher(new Weigher<byte[]>() {
+                public int weightOf(byte[] value) {
+                    return Math.max(1, value.length);
+                }
+            })
+        .listener(new EvictionListener<Key, byte[]>() {
+                public void onEviction(Key key, byte[] value) {
+                    evictions.incrementAndGet();
+                }
+            })
+        .build();
+
+    static final class Key {
+        final String file;
+        final long version;
+        final long block;
+
+        Key(String file, long version, long block) {
+            this.file = file;
+            this.version = version;
+            this.block = block;
+        }
+
+        @Override
+        public int hashCode() {
+            return (file.hashCode() * 31 + (int) (version ^ (version >>> 32))) * 31 + (int) (block ^ (block >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return block == k.block && version == k.version && file.equals(k.file);
+        }
+    }
+
+    public static boolean cacheable(String name) {
+        return !name.equals("segments.gen") && !name.endsWith("write.lock");
+    }
+
+    public static void setCapacity(long bytes) {
+        cache.setCapacity(bytes);
+    }
+
+    public static long version(String file) {
+        Long v = versions.get(file);
+        if (v == null) {
+            Long created = nextVersion.incrementAndGet();
+            v = versions.putIfAbsent(file, created);
+            if (v == null)
+                v = created;
+        }
+        return v;
+    }
+
+    public static void invalidate(String file) {
+        // the next version() call creates a new one
+        versions.remove(file);
+    }
+
+    public static byte[] get(String file, long version, long block) {
+        byte[] b = cache.get(new Key(file, version, block));
+        if (b == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return b;
+    }
+
+    public static boolean contains(String file, long version, long block) {
+        return cache.containsKey(new Key(file, version, block));
+    }
+
+    public static void put(String file, long version, long block, byte[] data) {
+        cache.put(new Key(file, version, block), data);
+    }
+
+    public static Map<String, Long> stats() {
+        Map<String, Long> m = new HashMap<String, Long>();
+        m.put("hits", hits.get());
+        m.put("misses", misses.get());
+        m.put("prefetched", prefetched.get());
+        m.put("evictions", evictions.get());
+        m.put("bytes", cache.weightedSize());
+        m.put("capacity", cache.capacity());
+        return m;
+    }
+}
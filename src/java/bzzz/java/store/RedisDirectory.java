@@ -11,17 +11,20 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.lucene.store.*;
 import org.apache.lucene.util.Accountable;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.exceptions.JedisDataException;
 
 
 public class RedisDirectory extends BaseDirectory implements Accountable {
-    int BLOCK_SIZE = 10240;
+    public static final int BLOCK_SIZE = 10240;
     public JedisPool redisPool;
     public String dir_name;
     public byte[] dir_name_bytes;
     public LockFactory lf;
+    // file lengths only change while the file is being written by us
+    final ConcurrentHashMap<String, Long> lengths = new ConcurrentHashMap<String, Long>();
 
     public RedisDirectory(String name, JedisPool pool) {
         redisPool = pool;
@@ -72,6 +75,9 @@ public class RedisDirectory extends BaseDirectory implements Accountable {
     @Override
     public final long fileLength(String name) throws IOException {
         ensureOpen();
+        Long cached = lengths.get(name);
+        if (cached != null)
+            return cached;
 
         Jedis jd = redisPool.getResource();
         try {
@@ -81,6 +87,8 @@ public class RedisDirectory extends BaseDirectory implements Accountable {
                 current = ByteBuffer.wrap(b).asLongBuffer().get();
             else
                 throw new FileNotFoundException(name);
+            if (RedisBlockCache.cacheable(name))
+                lengths.put(name, current);
             return current;
         } finally {
             redisPool.returnResource(jd);
@@ -96,6 +104,8 @@ public class RedisDirectory extends BaseDirectory implements Accountable {
     @Override
     public void deleteFile(String name) throws IOException {
         ensureOpen();
+        lengths.remove(name);
+        RedisBlockCache.invalidate(get_global_filename(name));
         Jedis jd = redisPool.getResource();
         try {
             jd.del(get_global_filename_key(name));
@@ -136,11 +146,23 @@ public class RedisDirectory extends BaseDirectory implements Accountable {
         }
     }
 
+    public String get_global_filename(String name) {
+        return String.format("@%s:%s", dir_name, name);
+    }
+
     public byte[] get_global_filename_key(String name) {
-        return String.format("@%s:%s", dir_name, name).getBytes();
+        return get_global_filename(name).getBytes();
     }
 
     public void setFileLength(String name, long l, Jedis jd) {
+        lengths.remove(name);
         jd.hset(dir_name_bytes, name.getBytes(), ByteBuffer.allocate(Long.SIZE).putLong(l).array());
     }
+
+    // same as setFileLength, but only sends the command, the caller reads
+    // the reply after the rest of its pipeline
+    public void queueFileLength(String name, long l, Client client) {
+        lengths.remove(name);
+        client.hset(dir_name_bytes, name.getBytes(), ByteBuffer.allocate(Long.SIZE).putLong(l).array());
+    }
 }
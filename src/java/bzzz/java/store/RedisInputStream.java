@@ -2,16 +2,20 @@ package bzzz.java.store;
 import java.io.IOException;
 import java.io.EOFException;
 import org.apache.lucene.store.*;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.exceptions.JedisDataException;
 
 public class RedisInputStream extends IndexInput implements Cloneable {
+    public static final int BUFFER_SIZE = RedisDirectory.BLOCK_SIZE;
     public int bufferPosition;
-    public int currentBufferIndex;
-    public int realBufferLen = 0;
-    public int BUFFER_SIZE = 10000;
-    private byte[] global_name;
+    public long currentBufferIndex;
+    private final byte[] global_name;
+    private final String cache_name;
+    private final boolean cacheable;
+    private final long version;
+    private final long fileLength;
     private byte[] BUFFER = null;
     public final RedisDirectory dir;
     String name;
@@ -25,68 +29,114 @@ public class RedisInputStream extends IndexInput implements Cloneable {
         this.dir = dir;
         this.name = name;
         this.global_name = dir.get_global_filename_key(name);
-        currentBufferIndex = -1;
+        this.cache_name = dir.get_global_filename(name);
+        this.cacheable = RedisBlockCache.cacheable(name);
+        this.version = cacheable ? RedisBlockCache.version(cache_name) : 0;
+        this.fileLength = dir.fileLength(name);
         setPosition(offset);
     }
 
     public void setPosition(long pos) throws IOException {
-        int updatedBufferIndex = (int) (pos / BUFFER_SIZE);
+        long updatedBufferIndex = pos / BUFFER_SIZE;
         bufferPosition = (int) (pos % BUFFER_SIZE);
-        if (BUFFER == null || updatedBufferIndex != currentBufferIndex) {
+        if (updatedBufferIndex != currentBufferIndex) {
             currentBufferIndex = updatedBufferIndex;
-            Jedis jd = dir.redisPool.getResource();
-            try {
-                refreshBuffer(jd);
-            } finally {
-                dir.redisPool.returnResource(jd);
+            BUFFER = null; // loaded on the next read
+        }
+    }
+
+    // blocks are immutable once read, clones share them
+    private byte[] loadBlock(long block) throws IOException {
+        if (cacheable) {
+            byte[] b = RedisBlockCache.get(cache_name, version, block);
+            if (b != null)
+                return b;
+        }
+
+        long lastBlock = (fileLength - 1) / BUFFER_SIZE;
+        if (fileLength == 0 || block > lastBlock)
+            return new byte[0];
+
+        // fetch the missing block and prefetch the next few in one round trip
+        long[] blocks = new long[cacheable ? RedisBlockCache.PREFETCH_BLOCKS + 1 : 1];
+        int n = 0;
+        blocks[n++] = block;
+        for (long next = block + 1; cacheable && n < blocks.length && next <= lastBlock; next++) {
+            if (!RedisBlockCache.contains(cache_name, version, next))
+                blocks[n++] = next;
+        }
+
+        byte[][] fetched = new byte[n][];
+        Jedis jd = dir.redisPool.getResource();
+        try {
+            Client client = jd.getClient();
+            for (int i = 0; i < n; i++) {
+                long from = blocks[i] * BUFFER_SIZE;
+                client.getrange(global_name, from, from + BUFFER_SIZE - 1);
             }
+            for (int i = 0; i < n; i++)
+                fetched[i] = client.getBinaryBulkReply();
+        } catch (RuntimeException e) {
+            // the replies we did not read are still on the connection
+            dir.redisPool.returnBrokenResource(jd);
+            jd = null;
+            throw e;
+        } finally {
+            if (jd != null)
+                dir.redisPool.returnResource(jd);
+        }
+
+        if (cacheable) {
+            for (int i = 0; i < n; i++)
+                RedisBlockCache.put(cache_name, version, blocks[i], fetched[i]);
+            RedisBlockCache.prefetched.addAndGet(n - 1);
         }
+        return fetched[0];
     }
 
-    @Override
-    public byte readByte() throws IOException {
-        byte[] b = new byte[1];
-        readBytes(b, 0, 1);
-        return b[0];
+    private void refill() throws IOException {
+        if (BUFFER != null && bufferPosition >= BUFFER.length) {
+            if (BUFFER.length < BUFFER_SIZE)
+                throw new EOFException("read past EOF: " + this);
+            currentBufferIndex++;
+            bufferPosition = 0;
+            BUFFER = null;
+        }
+        if (BUFFER == null)
+            BUFFER = loadBlock(currentBufferIndex);
+        if (bufferPosition >= BUFFER.length)
+            throw new EOFException("read past EOF: " + this);
     }
 
-    public void refreshBuffer(Jedis jd) throws IOException {
-        int from = absolutePosition(0);
-        BUFFER = jd.getrange(global_name, from, from + BUFFER_SIZE - 1);
+    @Override
+    public byte readByte() throws IOException {
+        if (BUFFER == null || bufferPosition >= BUFFER.length)
+            refill();
+        return BUFFER[bufferPosition++];
     }
 
     @Override
     public void readBytes(byte[] b, int offset, int len) throws IOException {
-        Jedis jd = dir.redisPool.getResource();
-        try {
-            while (len > 0) {
-                if (bufferPosition >= BUFFER.length) {
-                    currentBufferIndex++;
-                    bufferPosition = 0;
-                    refreshBuffer(jd);
-                }
-
-                int remainInBuffer = BUFFER.length - bufferPosition;
-                if (remainInBuffer <= 0)
-                    throw new IOException("remainInBuffer <= 0, current BUFFER.length: " + BUFFER.length + " bufferPosition: " + bufferPosition);
-                int bytesToCopy = len < remainInBuffer ? len : remainInBuffer;
-                System.arraycopy(BUFFER, bufferPosition, b, offset, bytesToCopy);
-                offset += bytesToCopy;
-                len -= bytesToCopy;
-                bufferPosition += bytesToCopy;
-            }
-        } finally {
-            dir.redisPool.returnResource(jd);
+        while (len > 0) {
+            if (BUFFER == null || bufferPosition >= BUFFER.length)
+                refill();
+
+            int remainInBuffer = BUFFER.length - bufferPosition;
+            int bytesToCopy = len < remainInBuffer ? len : remainInBuffer;
+            System.arraycopy(BUFFER, bufferPosition, b, offset, bytesToCopy);
+            offset += bytesToCopy;
+            len -= bytesToCopy;
+            bufferPosition += bytesToCopy;
         }
     }
 
-    public int absolutePosition(long n) {
-        return (currentBufferIndex * BUFFER_SIZE) + (int) n;
+    public long absolutePosition(long n) {
+        return (currentBufferIndex * BUFFER_SIZE) + n;
     }
 
     @Override
     public long getFilePointer() {
-        return currentBufferIndex < 0 ? 0 : absolutePosition(bufferPosition);
+        return absolutePosition(bufferPosition);
     }
 
     @Override
@@ -99,11 +149,7 @@ public class RedisInputStream extends IndexInput implements Cloneable {
 
     @Override
     public long length() {
-        try {
-            return dir.fileLength(name);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return fileLength;
     }
 
     @Override
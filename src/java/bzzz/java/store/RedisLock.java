@@ -1,47 +1,154 @@
 package bzzz.java.store;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import org.apache.lucene.store.Lock;
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 
+// the lock is a key holding the owner's token, taken with SET NX PX so
+// checking and taking it is one atomic step. while held, the lease is
+// renewed every LEASE_MS / 3, and both renewal and release only touch
+// the key if it still holds our token, so a node that stalled past its
+// lease can not extend or delete a lock someone else took since.
+// a crashed node stops renewing and its lock expires after LEASE_MS.
+// a lost lease is not given back: isHeld() stays false, and writers
+// check it (through the factory) before they commit.
 public class RedisLock extends Lock {
+    public static volatile long LEASE_MS = 30000;
+
+    static final String RENEW =
+        "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+        "return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end";
+    static final String RELEASE =
+        "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+        "return redis.call('del', KEYS[1]) else return 0 end";
+
+    static final ScheduledExecutorService heartbeat =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "redis-lock-heartbeat");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static final String owner = ManagementFactory.getRuntimeMXBean().getName();
+
     String name;
     JedisPool pool;
-	
+    RedisLockFactory factory;
+    final String token = owner + ":" + UUID.randomUUID().toString();
+    private volatile boolean held = false;
+    private ScheduledFuture<?> renewal;
+
     public RedisLock(String nm, JedisPool pl) {
+        this(nm, pl, null);
+    }
+
+    public RedisLock(String nm, JedisPool pl, RedisLockFactory f) {
         name = nm;
         pool = pl;
+        factory = f;
     }
 
-    @Override
-    public boolean isLocked() throws IOException {
+    static void warn(String message) {
+        Clojure.var("clojure.core", "require").invoke(Clojure.read("bzzz.log"));
+        IFn warn = Clojure.var("bzzz.log", "warn");
+        warn.invoke(message);
+    }
+
+    private Object eval(String script, String... args) {
         Jedis jds = pool.getResource();
         try {
-            return jds.exists(name);
+            return jds.eval(script, Arrays.asList(name), Arrays.asList(args));
         } finally {
             pool.returnResource(jds);
         }
     }
 
     @Override
-    public boolean obtain() throws IOException {
-        if( isLocked() )
-            return false;
+    public boolean isLocked() throws IOException {
         Jedis jds = pool.getResource();
         try {
-            return jds.set(name, "1") != null;
+            return jds.exists(name);
         } finally {
             pool.returnResource(jds);
         }
     }
 
+    // true while we hold the lease, false once it was released or lost
+    public boolean isHeld() {
+        return held;
+    }
+
     @Override
-    public void close() throws IOException {
+    public synchronized boolean obtain() throws IOException {
+        if (held)
+            return false;
+        long lease = LEASE_MS;
         Jedis jds = pool.getResource();
         try {
-            jds.del(name);
+            if (jds.set(name, token, "NX", "PX", lease) == null)
+                return false;
         } finally {
             pool.returnResource(jds);
         }
+        held = true;
+        if (factory != null)
+            factory.obtained.put(name, this);
+        long every = Math.max(1, lease / 3);
+        renewal = heartbeat.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    renew();
+                }
+            }, every, every, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    synchronized void renew() {
+        if (!held)
+            return;
+        try {
+            Object r = eval(RENEW, token, String.valueOf(LEASE_MS));
+            if (!Long.valueOf(1).equals(r)) {
+                // expired and maybe taken by someone else, nothing to renew
+                warn("lost redis lock " + name + " (" + token + ")");
+                stopRenewal();
+            }
+        } catch (RuntimeException e) {
+            // keep trying until the lease runs out
+            warn("failed to renew redis lock " + name + ": " + e);
+        }
+    }
+
+    private void stopRenewal() {
+        held = false;
+        if (renewal != null) {
+            renewal.cancel(false);
+            renewal = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (factory != null)
+            factory.obtained.remove(name, this);
+        if (!held)
+            return;
+        stopRenewal();
+        eval(RELEASE, token);
+    }
+
+    public String toString() {
+        return "RedisLock@" + name + "(" + token + ")";
     }
 }
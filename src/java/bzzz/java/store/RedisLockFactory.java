@@ -1,5 +1,6 @@
 package bzzz.java.store;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.lucene.store.Lock;
 import org.apache.lucene.store.LockFactory;
 import redis.clients.jedis.Jedis;
@@ -8,6 +9,8 @@ import redis.clients.jedis.JedisPool;
 public class RedisLockFactory extends LockFactory {
     protected JedisPool pool;
     String root;
+    // locks obtained through this factory, by name
+    final ConcurrentHashMap<String, RedisLock> obtained = new ConcurrentHashMap<String, RedisLock>();
     public RedisLockFactory(String root, JedisPool pl) {
         pool = pl;
         this.root = root;
@@ -25,7 +28,14 @@ public class RedisLockFactory extends LockFactory {
 
     @Override
     public Lock makeLock(String name) {
-        return new RedisLock(root + name, pool);
+        return new RedisLock(root + name, pool, this);
+    }
+
+    // true if we obtained the lock and its lease was not lost since, the
+    // writers check it before every commit
+    public boolean isHeld(String name) {
+        RedisLock lock = obtained.get(root + name);
+        return lock != null && lock.isHeld();
     }
 
 }
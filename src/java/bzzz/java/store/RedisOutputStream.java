@@ -1,20 +1,27 @@
 package bzzz.java.store;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 import java.util.Arrays;
 import org.apache.lucene.store.*;
 import org.apache.lucene.util.Accountable;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.exceptions.JedisDataException;
 
+// writes are buffered in BATCH_BLOCKS blocks, when the buffer is full
+// (or on flush/close) it is sent with one SETRANGE and the new length
+// with one HSET, pipelined, so there is one round trip per batch instead
+// of two per writeBytes call
 public class RedisOutputStream extends IndexOutput implements Accountable {
+    public static final int BATCH_BLOCKS = 16;
     public final RedisDirectory dir;
     private byte[] global_name;
     private String name;
-    private int bufferPosition;
+    private final byte[] buffer = new byte[RedisDirectory.BLOCK_SIZE * BATCH_BLOCKS];
+    private int bufferLength;
+    private long flushedLength;
     private final Checksum crc;
 
     public RedisOutputStream(String name, RedisDirectory dir) {
@@ -24,7 +31,8 @@ public class RedisOutputStream extends IndexOutput implements Accountable {
         crc = new BufferedChecksum(new CRC32());
     }
     public void reset() {
-        this.bufferPosition = 0;
+        this.bufferLength = 0;
+        this.flushedLength = 0;
         crc.reset();
     }
 
@@ -35,7 +43,10 @@ public class RedisOutputStream extends IndexOutput implements Accountable {
 
     @Override
     public void writeByte(byte b) throws IOException {
-        writeBytes(ByteBuffer.allocate(1).put(b).array(), 0, 1);
+        if (bufferLength == buffer.length)
+            send();
+        crc.update(b);
+        buffer[bufferLength++] = b;
     }
 
     @Override
@@ -45,30 +56,53 @@ public class RedisOutputStream extends IndexOutput implements Accountable {
         assert b != null;
         crc.update(b, offset, len);
 
-        byte[] copy = Arrays.copyOfRange(b, offset, (int) (offset + len));
+        while (len > 0) {
+            if (bufferLength == buffer.length)
+                send();
+            int n = Math.min(len, buffer.length - bufferLength);
+            System.arraycopy(b, offset, buffer, bufferLength, n);
+            bufferLength += n;
+            offset += n;
+            len -= n;
+        }
+    }
 
+    private void send() throws IOException {
+        if (bufferLength == 0)
+            return;
+        long length = flushedLength + bufferLength;
         Jedis jd = dir.redisPool.getResource();
         try {
-            long l = jd.setrange(global_name,bufferPosition,copy);
-            dir.setFileLength(name,l,jd);
-            bufferPosition += len;
+            Client client = jd.getClient();
+            client.setrange(global_name, flushedLength, Arrays.copyOf(buffer, bufferLength));
+            dir.queueFileLength(name, length, client);
+            client.getIntegerReply();
+            client.getIntegerReply();
+        } catch (RuntimeException e) {
+            dir.redisPool.returnBrokenResource(jd);
+            jd = null;
+            throw e;
         } finally {
-            dir.redisPool.returnResource(jd);
+            if (jd != null)
+                dir.redisPool.returnResource(jd);
         }
+        flushedLength = length;
+        bufferLength = 0;
     }
 
     @Override
     public void flush() throws IOException {
+        send();
     }
 
     @Override
     public long getFilePointer() {
-        return bufferPosition;
+        return flushedLength + bufferLength;
     }
 
     @Override
     public long ramBytesUsed() {
-        return 0;
+        return buffer.length;
     }
 
     @Override
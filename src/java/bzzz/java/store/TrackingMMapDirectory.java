@@ -0,0 +1,48 @@
+package bzzz.java.store;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+
+// MMapDirectory that remembers the length of every file it opened (and
+// has not deleted), so we can report roughly how much of a shard is
+// mapped. the writer and the searcher open their own directory on the
+// same path, so the lengths are kept per path and shared.
+// a file deleted while a reader still has it open stays mapped until
+// the reader is closed, so this is a lower bound during merges.
+public class TrackingMMapDirectory extends MMapDirectory {
+    static final ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> mapped =
+        new ConcurrentHashMap<String, ConcurrentHashMap<String, Long>>();
+
+    final ConcurrentHashMap<String, Long> files;
+
+    public TrackingMMapDirectory(File path) throws IOException {
+        super(path);
+        String key = getDirectory().getCanonicalPath();
+        ConcurrentHashMap<String, Long> created = new ConcurrentHashMap<String, Long>();
+        ConcurrentHashMap<String, Long> existing = mapped.putIfAbsent(key, created);
+        files = existing == null ? created : existing;
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+        IndexInput in = super.openInput(name, context);
+        files.put(name, in.length());
+        return in;
+    }
+
+    @Override
+    public void deleteFile(String name) throws IOException {
+        super.deleteFile(name);
+        files.remove(name);
+    }
+
+    public long mappedBytes() {
+        long sum = 0;
+        for (Long l : files.values())
+            sum += l;
+        return sum;
+    }
+}
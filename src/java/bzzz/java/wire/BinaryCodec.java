@@ -0,0 +1,263 @@
+package bzzz.java.wire;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import clojure.lang.*;
+import org.apache.lucene.util.BytesRef;
+
+// node to node encoding used by search-many instead of json
+//
+// every value is a one byte tag followed by its payload, strings and
+// containers are length prefixed (varint). Map keys are written once per
+// message and referenced by id afterwards, so the decoder creates each
+// keyword once per message instead of once per hit.
+// The output decodes to the same thing (json/read-str .. :key-fn keyword)
+// would return for the json encoding of the input.
+public class BinaryCodec {
+    public static final String CONTENT_TYPE = "application/x-bzzz-binary";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int MAGIC = 0xBB;
+    static final int VERSION = 1;
+
+    static final int NULL = 0;
+    static final int TRUE = 1;
+    static final int FALSE = 2;
+    static final int LONG = 3;
+    static final int DOUBLE = 4;
+    static final int STRING = 5;
+    static final int MAP = 6;
+    static final int LIST = 7;
+    static final int KEY_NEW = 8;
+    static final int KEY_REF = 9;
+
+    public static byte[] encode(Object o) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+        encode(o, bos);
+        return bos.toByteArray();
+    }
+
+    public static void encode(Object o, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 8192));
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        new Encoder(out).write(o);
+        out.flush();
+    }
+
+    public static Object decode(byte[] b) throws IOException {
+        Decoder d = new Decoder(b);
+        if (d.readByte() != MAGIC || d.readByte() != VERSION)
+            throw new IOException("not a binary encoded message (version " + VERSION + ")");
+        return d.read();
+    }
+
+    public static Object decode(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) != -1)
+            bos.write(buf, 0, n);
+        return decode(bos.toByteArray());
+    }
+
+    static String keyName(Object k) {
+        if (k instanceof Named)
+            return ((Named) k).getName();
+        return String.valueOf(k);
+    }
+
+    static final class Encoder {
+        final DataOutputStream out;
+        final Map<String, Integer> keys = new HashMap<String, Integer>();
+
+        Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void varint(long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+
+        void string(String s) throws IOException {
+            byte[] b = s.getBytes(UTF8);
+            varint(b.length);
+            out.write(b);
+        }
+
+        void key(Object k) throws IOException {
+            String name = keyName(k);
+            Integer id = keys.get(name);
+            if (id == null) {
+                keys.put(name, keys.size());
+                out.writeByte(KEY_NEW);
+                string(name);
+            } else {
+                out.writeByte(KEY_REF);
+                varint(id);
+            }
+        }
+
+        void write(Object o) throws IOException {
+            if (o == null) {
+                out.writeByte(NULL);
+            } else if (o instanceof Boolean) {
+                out.writeByte(((Boolean) o) ? TRUE : FALSE);
+            } else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+                out.writeByte(LONG);
+                long v = ((Number) o).longValue();
+                varint((v << 1) ^ (v >> 63));
+            } else if (o instanceof Float) {
+                // json writes the shortest decimal of the float, keep it
+                // the same instead of widening 0.1f to 0.10000000149011612
+                out.writeByte(DOUBLE);
+                out.writeDouble(Double.parseDouble(o.toString()));
+            } else if (o instanceof Number) {
+                out.writeByte(DOUBLE);
+                out.writeDouble(((Number) o).doubleValue());
+            } else if (o instanceof String) {
+                out.writeByte(STRING);
+                string((String) o);
+            } else if (o instanceof Named) {
+                out.writeByte(STRING);
+                string(((Named) o).getName());
+            } else if (o instanceof BytesRef) {
+                out.writeByte(STRING);
+                string(((BytesRef) o).utf8ToString());
+            } else if (o instanceof Map) {
+                Map<?, ?> m = (Map<?, ?>) o;
+                out.writeByte(MAP);
+                varint(m.size());
+                for (Map.Entry<?, ?> e : m.entrySet()) {
+                    key(e.getKey());
+                    write(e.getValue());
+                }
+            } else if (o instanceof Collection) {
+                Collection<?> c = (Collection<?>) o;
+                out.writeByte(LIST);
+                varint(c.size());
+                for (Object v : c)
+                    write(v);
+            } else if (o instanceof Object[]) {
+                Object[] a = (Object[]) o;
+                out.writeByte(LIST);
+                varint(a.length);
+                for (Object v : a)
+                    write(v);
+            } else if (o instanceof Seqable) {
+                write(PersistentVector.create(RT.seq(o)));
+            } else {
+                out.writeByte(STRING);
+                string(o.toString());
+            }
+        }
+    }
+
+    static final class Decoder {
+        final byte[] b;
+        int pos = 0;
+        final ArrayList<Keyword> keys = new ArrayList<Keyword>();
+
+        Decoder(byte[] b) {
+            this.b = b;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= b.length)
+                throw new EOFException();
+            return b[pos++] & 0xFF;
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            int shift = 0;
+            while (true) {
+                int x = readByte();
+                v |= (long) (x & 0x7F) << shift;
+                if ((x & 0x80) == 0)
+                    return v;
+                shift += 7;
+                if (shift > 63)
+                    throw new IOException("malformed varint");
+            }
+        }
+
+        int length() throws IOException {
+            long n = varint();
+            if (n < 0 || n > b.length - pos)
+                throw new IOException("bad length " + n);
+            return (int) n;
+        }
+
+        String string() throws IOException {
+            int n = length();
+            String s = new String(b, pos, n, UTF8);
+            pos += n;
+            return s;
+        }
+
+        Keyword key() throws IOException {
+            int tag = readByte();
+            if (tag == KEY_NEW) {
+                Keyword k = Keyword.intern(string());
+                keys.add(k);
+                return k;
+            }
+            if (tag == KEY_REF) {
+                long id = varint();
+                if (id >= keys.size())
+                    throw new IOException("unknown key " + id);
+                return keys.get((int) id);
+            }
+            throw new IOException("expected key, got " + tag);
+        }
+
+        Object read() throws IOException {
+            int tag = readByte();
+            switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case LONG: {
+                long v = varint();
+                return (v >>> 1) ^ -(v & 1);
+            }
+            case DOUBLE: {
+                if (b.length - pos < 8)
+                    throw new EOFException();
+                long bits = 0;
+                for (int i = 0; i < 8; i++)
+                    bits = (bits << 8) | (b[pos++] & 0xFF);
+                return Double.longBitsToDouble(bits);
+            }
+            case STRING:
+                return string();
+            case MAP: {
+                int n = length();
+                ITransientMap m = PersistentHashMap.EMPTY.asTransient();
+                for (int i = 0; i < n; i++) {
+                    Keyword k = key();
+                    m = m.assoc(k, read());
+                }
+                return m.persistent();
+            }
+            case LIST: {
+                int n = length();
+                ITransientCollection v = PersistentVector.EMPTY.asTransient();
+                for (int i = 0; i < n; i++)
+                    v = v.conj(read());
+                return v.persistent();
+            }
+            default:
+                throw new IOException("unknown tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package bzzz.java.wire;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+// splits a json object read from a stream in two, without parsing it:
+// the value of one top level array key (like the documents of a store
+// request) goes to a Spool, and the rest of the object goes to a byte
+// array with [] in place of that value. The rest is small and is parsed
+// as usual, the array is parsed one element at a time from the spool.
+// The other keys can come before or after the array, the spool keeps it
+// in memory only up to its limit.
+// utf-8 continuation bytes never look like ascii, so looking only at the
+// structural characters is safe.
+public class JsonSplitter {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final byte[] EMPTY = new byte[] { '[', ']' };
+
+    final byte[] key;
+    final ByteArrayOutputStream rest = new ByteArrayOutputStream();
+    final Spool value;
+
+    int depth = 0;
+    boolean in_string = false;
+    boolean escape = false;
+    boolean key_position = false;
+    boolean reading_key = false;
+    int key_length = 0;
+    boolean key_differs = false;
+    boolean matched = false;
+    boolean capturing = false;
+    boolean found = false;
+
+    public JsonSplitter(String key, Spool value) {
+        this.key = key.getBytes(UTF8);
+        this.value = value;
+    }
+
+    // true if c goes to the spool
+    boolean consume(byte c) {
+        if (in_string) {
+            if (escape) {
+                escape = false;
+            } else if (c == '\\') {
+                escape = true;
+            } else if (c == '"') {
+                in_string = false;
+                if (reading_key) {
+                    reading_key = false;
+                    matched = !key_differs && key_length == key.length;
+                }
+                return capturing;
+            }
+            if (reading_key) {
+                if (key_length >= key.length || key[key_length] != c)
+                    key_differs = true;
+                key_length++;
+            }
+            return capturing;
+        }
+        switch (c) {
+        case '"':
+            in_string = true;
+            if (depth == 1 && key_position) {
+                key_position = false;
+                reading_key = true;
+                key_length = 0;
+                key_differs = false;
+            }
+            break;
+        case '{':
+            if (depth == 0)
+                key_position = true;
+            depth++;
+            break;
+        case '[':
+            if (depth == 1 && matched && !found) {
+                capturing = true;
+                found = true;
+            }
+            depth++;
+            break;
+        case '}':
+        case ']':
+            depth--;
+            if (capturing && depth == 1) {
+                capturing = false;
+                return true;
+            }
+            break;
+        case ',':
+            if (depth == 1) {
+                key_position = true;
+                matched = false;
+            }
+            break;
+        default:
+            break;
+        }
+        return capturing;
+    }
+
+    void read(InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            int from = 0;
+            // the array can continue from the previous buffer
+            boolean to_value = capturing;
+            for (int i = 0; i < n; i++) {
+                boolean v = consume(buf[i]);
+                if (v != to_value) {
+                    flush(buf, from, i, to_value);
+                    if (v)
+                        rest.write(EMPTY, 0, EMPTY.length);
+                    from = i;
+                    to_value = v;
+                }
+            }
+            flush(buf, from, n, to_value);
+        }
+    }
+
+    void flush(byte[] buf, int from, int to, boolean to_value) throws IOException {
+        if (to <= from)
+            return;
+        if (to_value)
+            value.write(buf, from, to - from);
+        else
+            rest.write(buf, from, to - from);
+    }
+
+    // reads all of in, the array value of key (if there is one at the top
+    // level) is written to the spool, the rest of the object is returned
+    public byte[] split(InputStream in) throws IOException {
+        read(in);
+        value.close();
+        return rest.toByteArray();
+    }
+
+    public boolean found() {
+        return found;
+    }
+}
@@ -0,0 +1,68 @@
+package bzzz.java.wire;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// bytes that are kept in memory up to limit, and in a temp file after
+// that. open() reads them back, release() deletes the file.
+public class Spool extends OutputStream implements Closeable {
+    final int limit;
+    ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    File file;
+    OutputStream out;
+
+    public Spool(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (out == null) {
+            if (memory.size() + len <= limit) {
+                memory.write(b, off, len);
+                return;
+            }
+            file = File.createTempFile("bzzz-spool-", ".json");
+            file.deleteOnExit();
+            out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+            memory.writeTo(out);
+            memory = null;
+        }
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null)
+            out.close();
+    }
+
+    public boolean on_disk() {
+        return file != null;
+    }
+
+    public InputStream open() throws IOException {
+        if (file == null)
+            return new ByteArrayInputStream(memory.toByteArray());
+        return new FileInputStream(file);
+    }
+
+    public void release() {
+        memory = null;
+        if (file != null)
+            file.delete();
+    }
+}
@@ -1,10 +1,14 @@
 (ns bzzz.core-test
-  (:import (java.io StringReader File))
+  (:import (java.io StringReader File)
+           (bzzz.java.store RedisBlockCache RedisLock)
+           (org.apache.lucene.index IndexWriter)
+           (redis.clients.jedis JedisPool))
   (:require [clojure.java.io :as io])
   (:require [clojure.data.json :as json])
   (:require [bzzz.query :as query])
   (:require [bzzz.timer :as timer])
   (:require [bzzz.discover :as discover])
+  (:require [clojure.core.async :as async])
   (:use clojure.test
         bzzz.core
         bzzz.util
@@ -460,6 +464,47 @@
       (is (= ["john doe highlight","jack2 doe2 highlight","3","highhlight"] (:name (first (:hits ret-page-0)))))
       (is (= "jack doe foo" (:name (last (:hits ret-page-1)))))))
 
+  (testing "search-or-cursor"
+    (let [search-after (fn [after sort]
+                         ;; the token goes through json like it would over http
+                         (let [ret (search (conj-if {:index test-index-name
+                                                     :query {:query-parser {:query "john doe"
+                                                                            :default-operator :or
+                                                                            :default-field "name"}}
+                                                     :size 1
+                                                     :after after}
+                                                    (when sort {:sort sort})))]
+                           (jr (json/write-str ret))))
+          ret-page-0 (search-after [] nil)
+          ret-page-1 (search-after (:after ret-page-0) nil)
+          ret-page-2 (search-after (:after ret-page-1) nil)
+          sorted-0 (search-after [] ["_doc"])
+          sorted-1 (search-after (:after sorted-0) ["_doc"])]
+      (is (= 2 (:total ret-page-0)))
+      (is (= 2 (:total ret-page-2)))
+      (is (= 1 (count (:hits ret-page-0))))
+      (is (= 1 (count (:hits ret-page-1))))
+      (is (= 0 (count (:hits ret-page-2))))
+      (is (= ["john doe highlight","jack2 doe2 highlight","3","highhlight"] (:name (first (:hits ret-page-0)))))
+      (is (= "jack doe foo" (:name (first (:hits ret-page-1)))))
+      (is (= (:after ret-page-1) (:after ret-page-2)))
+      (is (= 1 (count (:hits sorted-0))))
+      (is (= 1 (count (:hits sorted-1))))
+      (is (not (= (:name (first (:hits sorted-0)))
+                  (:name (first (:hits sorted-1))))))
+      (testing "the hit positions are only returned to peers"
+        (let [input {:index test-index-name
+                     :query {:query-parser {:query "john doe"
+                                            :default-operator :or
+                                            :default-field "name"}}
+                     :size 1
+                     :after []}
+              client (work :get "/" input)
+              peer (work :get "/" (assoc input :peer-request true))]
+          (is (= (:after ret-page-0) (jr (json/write-str (:after client)))))
+          (is (not-any? :_cursor (:hits client)))
+          (is (every? :_cursor (:hits peer)))))))
+
   (testing "search-and"
     (let [ret (search {:index test-index-name
                        :query {:query-parser {:query "john doe"
@@ -992,17 +1037,546 @@
     (refresh-search-managers)
     (is (= 2 (count (file-seq (get-path test-index-name 10)))))
     (should-work test-index-name 2)
+    (let [stats (RedisBlockCache/stats)]
+      (is (< 0 (get stats "misses")))
+      (is (< 0 (get stats "bytes"))))
     (cleanup)
     (should-work test-index-name 0))
 
+  (testing "directory.conf"
+    (cleanup)
+    (try-create-prefix (get-path test-index-name 11))
+    (spit (io/file (get-path test-index-name 11) "directory.conf")
+          (json/write-str {:type "mmap"
+                           :nrt-cache-mb 16}))
+    (store-something test-index-name 11)
+    (refresh-search-manager test-index-name)
+    (should-work test-index-name 1)
+    (let [dir (get-in (index-stat) [(sharded test-index-name 11) :directory])]
+      (is (= "TrackingMMapDirectory" (:type dir)))
+      (is (< 0 (:mapped-bytes dir)))
+      (is (contains? dir :nrt-cached-bytes)))
+    (cleanup))
+
   (testing "teardown"
     (shutdown)
     (try
       (do
         (delete-recursively (get-path test-index-name 0))
         (delete-recursively (get-path test-index-name 10))
+        (delete-recursively (get-path test-index-name 11))
         (delete-recursively (get-path test-index-name 1))
         (delete-recursively (get-path test-index-name 2))
         (delete-recursively (get-path test-index-name 3))
         (delete-recursively (get-path moved-index-name 0)))
       (catch Exception e))))
+
+;; needs redis on localhost:6379, like the redis part of test-app
+(deftest test-redis-lock
+  (let [pool (JedisPool. "localhost" 6379)
+        name "__lein-test-lock"
+        a (RedisLock. name pool)
+        b (RedisLock. name pool)]
+    (testing "only one owner"
+      (is (.obtain a))
+      (is (not (.obtain b)))
+      (is (.isLocked b))
+      (is (.isHeld a))
+      (is (not (.isHeld b))))
+    (testing "closing a lock we do not hold does not release it"
+      (.close b)
+      (is (.isLocked a))
+      (is (not (.obtain b))))
+    (testing "released by the owner"
+      (.close a)
+      (is (not (.isLocked a)))
+      (is (.obtain b))
+      (.close b))
+    (testing "a stale owner can not release a lock someone else took"
+      (let [old RedisLock/LEASE_MS]
+        (try
+          (set! RedisLock/LEASE_MS 300)
+          (is (.obtain a))
+          ;; stop a's heartbeat from renewing, like a stalled node
+          (let [jds (.getResource pool)]
+            (try
+              (.set jds name "someone-else")
+              (finally
+                (.returnResource pool jds))))
+          (Thread/sleep 250)
+          (is (not (.isHeld a)))
+          (.close a)
+          (is (.isLocked b))
+          (finally
+            (set! RedisLock/LEASE_MS old)
+            (.clearLock (bzzz.java.store.RedisLockFactory. "" pool) name)))))
+    (testing "a writer that lost its lease does not commit"
+      (let [old RedisLock/LEASE_MS
+            index "__lein-test-lock-fencing"
+            dir (get-path index 0)
+            lock (str (acceptable-index-name (sharded index 0)) IndexWriter/WRITE_LOCK_NAME)
+            steal (fn [value]
+                    (let [jds (.getResource pool)]
+                      (try
+                        (if value
+                          (.set jds ^String lock ^String value)
+                          (.del jds ^String lock))
+                        (finally
+                          (.returnResource pool jds)))))]
+        (try
+          (set! RedisLock/LEASE_MS 300)
+          (try-create-prefix dir)
+          (spit (io/file dir "redis.conf")
+                (json/write-str {:host "localhost"
+                                 :port 6379}))
+          (store {:index index :shard 0 :documents [{:name "a"}]})
+          (steal "someone-else")
+          (Thread/sleep 250)
+          (is (thrown-with-msg? Throwable #"lost its write lock"
+                (store {:index index :shard 0 :documents [{:name "b"}]})))
+          (finally
+            (set! RedisLock/LEASE_MS old)
+            (steal nil)
+            (doseq [^File f (reverse (file-seq dir))]
+              (.delete f))))))
+    (.destroy pool)))
+
+(deftest test-store-validation
+  (let [index "__lein-test-store-validation"
+        total #(:total (search {:index index :query {:match-all {}}}))]
+    (delete-all index)
+    (doseq [input [{:index index}
+                   {:index index :number-of-shards 2}]]
+      (testing (str "bad document " input)
+        (is (thrown? Throwable
+                     (store (assoc input :documents [{:name "a"} {:name "b"} {:priority_long "not a number"}]))))
+        (store (assoc input :documents [{:name "c"}]))
+        (refresh-search-manager index)
+        ;; a and b were not left in the shared writer for the next commit
+        (is (= 1 (total)))
+        (delete-all index)))))
+
+(deftest test-merge-sorted-hits
+  (testing "merge"
+    (let [a [{:_score 10 :id "a0"} {:_score 5 :id "a1"} {:_score 1 :id "a2"}]
+          b [{:_score 7 :id "b0"} {:_score 5 :id "b1"}]
+          c []
+          merged (merge-sorted-hits by-score [a b c] nil)]
+      (is (= ["a0" "b0" "a1" "b1" "a2"] (map :id merged)))
+      (is (= (sort by-score (concat a b c)) merged))
+      (is (= ["a0" "b0"] (map :id (merge-sorted-hits by-score [a b c] 2))))
+      (is (= [] (merge-sorted-hits by-score [c c] 10)))))
+
+  (testing "merge-sort-fields"
+    (let [s (fn [v] [{:reverse false :value v}])
+          a [{:_score 1 :_sort (s 1) :id "a0"} {:_score 1 :_sort (s 3) :id "a1"}]
+          b [{:_score 1 :_sort (s 2) :id "b0"} {:_score 1 :_sort (s 3) :id "b1"}]]
+      (is (= ["a0" "b0" "a1" "b1"] (map :id (merge-sorted-hits by-sort-fields [a b] 10)))))))
+
+(deftest test-facet-refine
+  (let [index "__lein-test-facet-refine"
+        docs (fn [counts]
+               (into [] (for [[label n] counts
+                              _ (range n)]
+                          {:name label})))
+        searcher (fn [facet]
+                   (search {:index index
+                            :query {:match-all {}}
+                            :facets {:name facet}}))]
+    (delete-all index)
+    (store {:index index :shard 0 :facets {:name {}}
+            :documents (docs {"y" 7 "x" 5 "w" 1})})
+    (store {:index index :shard 1 :facets {:name {}}
+            :documents (docs {"v" 6 "z" 5 "y" 3})})
+    (refresh-search-manager index)
+    (testing "truncated"
+      (let [top (first (:name (:facets (searcher {:size 1 :shard-size 2}))))]
+        (is (= "y" (:label top)))
+        (is (= 7 (:count top)))))
+    (testing "refined"
+      (let [top (first (:name (:facets (searcher {:size 1 :shard-size 2 :refine true}))))]
+        (is (= "y" (:label top)))
+        (is (= 10 (:count top)))))
+    (testing "refine-requests"
+      (is (= {1 {:name ["y"]}}
+             (facet-refinements {:facets {:name {:size 1 :shard-size 2 :refine true}}}
+                                [{:facets {:name [{:label "y" :count 7} {:label "x" :count 5}]}}
+                                 {:facets {:name [{:label "v" :count 6} {:label "z" :count 5}]}}
+                                 {:facets {:name [{:label "a" :count 1}]}}]))))
+    (delete-all index)))
+
+(deftest test-analyzer-cache
+  (let [tokens (fn [^org.apache.lucene.analysis.Analyzer analyzer ^String field text]
+                 (let [^org.apache.lucene.analysis.TokenStream stream (.tokenStream analyzer field (StringReader. text))
+                       ^org.apache.lucene.analysis.tokenattributes.CharTermAttribute term
+                       (.addAttribute stream org.apache.lucene.analysis.tokenattributes.CharTermAttribute)]
+                   (.reset stream)
+                   (let [out (loop [out []]
+                               (if (.incrementToken stream)
+                                 (recur (conj out (.toString term)))
+                                 out))]
+                     (.end stream)
+                     (.close stream)
+                     out)))
+        definition {:name {:type "custom"
+                           :tokenizer "whitespace"
+                           :char-filter [{:type "pattern-replace"
+                                          :pattern "X+"
+                                          :replacement "ZZ"}]}
+                    :other {:type "keyword"}}]
+    (testing "same definition, same analyzer"
+      (let [a (bzzz.analyzer/parse-analyzer definition)
+            hits (get-in (bzzz.analyzer/analyzer-stat) [:analyzers (bzzz.analyzer/canonical-key definition) :hits])
+            b (bzzz.analyzer/parse-analyzer {"other" {"type" "keyword"}
+                                             "name" (:name definition)})]
+        (is (identical? a b))
+        (is (= (inc hits)
+               (get-in (bzzz.analyzer/analyzer-stat) [:analyzers (bzzz.analyzer/canonical-key definition) :hits])))
+        (is (not (identical? a (bzzz.analyzer/parse-analyzer {:name {:type "keyword"}}))))))
+    (testing "hit rate per analyzer"
+      (let [d {(keyword (str "f" (System/nanoTime))) {:type "keyword"}}
+            stat #(get-in (bzzz.analyzer/analyzer-stat) [:analyzers (bzzz.analyzer/canonical-key d)])]
+        (dotimes [i 3]
+          (bzzz.analyzer/parse-analyzer d))
+        (is (= {:hits 2 :misses 1} (select-keys (stat) [:hits :misses])))
+        (is (< 0.66 (:hit-rate (stat)) 0.67))
+        (try
+          ;; evicted and built again, the counts go on
+          (bzzz.analyzer/set-analyzer-cache-size 1)
+          (bzzz.analyzer/parse-analyzer nil)
+          (is (nil? (stat)))
+          (bzzz.analyzer/set-analyzer-cache-size default-analyzer-cache-size)
+          (bzzz.analyzer/parse-analyzer d)
+          (is (= {:hits 2 :misses 2 :hit-rate 0.5} (stat)))
+          (finally
+            (bzzz.analyzer/set-analyzer-cache-size default-analyzer-cache-size)))))
+    (testing "char filters are applied to reused components"
+      (let [a (bzzz.analyzer/parse-analyzer definition)]
+        (is (= ["aZZ" "b"] (tokens a "name" "aXX b")))
+        (is (= ["cZZ"] (tokens a "name" "cX")))))))
+
+(deftest test-query-and-filter-cache
+  (let [index "__lein-test-filter-cache"
+        analyzer (bzzz.analyzer/parse-analyzer nil)
+        filtered {:filtered {:query {:match-all {}}
+                             :filter {:term {:field "name" :value "x"}}}}
+        searcher #(search {:index index :query filtered})
+        filter-stat #(get (bzzz.filter-cache/filter-cache-stat) %)]
+    (testing "parsed once"
+      (is (identical? (bzzz.query/cached-parse-query filtered analyzer)
+                      (bzzz.query/cached-parse-query {"filtered" {"filter" {"term" {"value" "x" "field" "name"}}
+                                                                  "query" {"match-all" {}}}}
+                                                     analyzer))))
+    (delete-all index)
+    (store {:index index :shard 0
+            :documents [{:id "1" :name "x"} {:id "2" :name "x"} {:id "3" :name "y"}]})
+    (refresh-search-manager index)
+    (testing "filter computed once per segment"
+      (is (= 2 (:total (searcher))))
+      (let [misses (filter-stat "misses")
+            hits (filter-stat "hits")]
+        (is (= 2 (:total (searcher))))
+        (is (= misses (filter-stat "misses")))
+        (is (< hits (filter-stat "hits")))))
+    (testing "deletes are applied to cached sets"
+      (delete-from-query index {:term {:field "id" :value "1"}})
+      (refresh-search-manager index)
+      (is (= 1 (:total (searcher)))))
+    (testing "entries of closed segments are dropped"
+      (let [invalidations (filter-stat "invalidations")]
+        (store {:index index :shard 0 :force-merge 1
+                :documents [{:id "4" :name "x"}]})
+        (refresh-search-manager index)
+        (is (= 2 (:total (searcher))))
+        (is (< invalidations (filter-stat "invalidations")))))
+    (delete-all index)))
+
+(deftest test-result-cache
+  (let [index "__lein-test-result-cache"
+        searcher (fn [extra]
+                   (search (merge {:index index
+                                   :query {:term {:field "name" :value "x"}}}
+                                  extra)))]
+    (delete-all index)
+    (store {:index index :shard 0 :documents [{:name "x"}]})
+    (store {:index index :shard 1 :documents [{:name "x"}]})
+    (refresh-search-manager index)
+    (set-result-cache-mb 16)
+    (try
+      (testing "cached until a shard changes"
+        (let [first-ret (searcher {})
+              second-ret (searcher {})]
+          (is (nil? (:cached first-ret)))
+          (is (:cached second-ret))
+          (is (= (:hits first-ret) (:hits second-ret)))
+          (is (= 2 (:total second-ret))))
+        (store {:index index :shard 1 :documents [{:name "x"}]})
+        (refresh-search-manager index)
+        (let [ret (searcher {})]
+          (is (nil? (:cached ret)))
+          (is (= 3 (:total ret)))))
+      (testing "skipped"
+        (is (nil? (:cached (searcher {:cache false}))))
+        (is (nil? (:cached (searcher {:must-refresh true}))))
+        (let [random {:query {:random-score {:query {:term {:field "name" :value "x"}}}}}]
+          (searcher random)
+          (is (nil? (:cached (searcher random))))
+          (is (nil? (:cached (searcher {:query {:bool {:must [(:query random)]}}}))))))
+      (finally
+        (set-result-cache-mb 0)))
+    (delete-all index)))
+
+(deftest test-field-projection
+  (let [index "__lein-test-field-projection"
+        searcher (fn [extra]
+                   (first (:hits (search (merge {:index index
+                                                 :query {:term {:field "name" :value "zzz"}}}
+                                                extra)))))]
+    (delete-all index)
+    (store {:index index
+            :documents [{:id "a" :name "zzz yyy" :body "long text" :priority_dv_long 7}]})
+    (refresh-search-manager index)
+    (testing "only the requested fields"
+      (let [hit (searcher {:fields {:id true}})]
+        (is (= "a" (:id hit)))
+        (is (nil? (:body hit)))
+        (is (nil? (:name hit)))))
+    (testing "highlighted fields are loaded but not returned"
+      (let [hit (searcher {:fields {:id true}
+                           :highlight {:fields ["name"]}})]
+        (is (nil? (:name hit)))
+        (is (= "<b>zzz</b> yyy" (:text (first (:name (:_highlight hit))))))))
+    (testing "doc values without stored fields"
+      (let [hit (searcher {:fields {}
+                           :doc-values ["id" "priority_dv_long" "missing_long"]})]
+        ;; id has no doc values, it is not uninverted for this
+        (is (not (contains? hit :id)))
+        (is (= 7 (:priority_dv_long hit)))
+        (is (not (contains? hit :missing_long)))
+        (is (nil? (:name hit)))))
+    (delete-all index)))
+
+(deftest test-parallel-segments
+  (let [index "__lein-test-parallel-segments"
+        searcher (fn [parallel extra]
+                   (-> (search (merge {:index index
+                                       :query {:query-parser {:query "name:x OR name:y"}}
+                                       :facets {:name {}}
+                                       :size 7
+                                       :parallel-segments parallel}
+                                      extra))
+                       (dissoc :took)))]
+    (delete-all index)
+    ;; every store commits, so each batch is its own segment
+    (doseq [batch (range 4)]
+      (store {:index index :shard 0 :facets {:name {}}
+              :documents (into [] (for [i (range 10)]
+                                    {:name (if (even? i) "x" "y")
+                                     :priority_long (+ (* batch 10) i)}))}))
+    (refresh-search-manager index)
+    (is (< 1 (get-in (index-stat) [(sharded index 0) :reader :leaves])))
+    (doseq [extra [{}
+                   {:page 2}
+                   {:sort [{:field "priority_long" :reverse true}]}
+                   {:sort [{:field "priority_long" :reverse true}] :page 1}]]
+      (testing (str "same as sequential " extra)
+        (let [expected (searcher false extra)
+              parallel (searcher true extra)]
+          (is (= 40 (:total parallel)))
+          (is (= (:total expected) (:total parallel)))
+          (is (= (:facets expected) (:facets parallel)))
+          (is (= (map :priority_long (:hits expected))
+                 (map :priority_long (:hits parallel)))))))
+    (delete-all index)))
+
+(deftest test-peer-load
+  (let [old @discover/host-load*]
+    (reset! discover/host-load* {})
+    (testing "ewma"
+      (discover/request-start "fast")
+      (discover/request-end "fast" 10 false)
+      (discover/request-start "slow")
+      (discover/request-end "slow" 100 false)
+      (discover/request-end "slow" 200 true)
+      (is (= 10.0 (:ewma (get @discover/host-load* "fast"))))
+      (is (= 130.0 (:ewma (get @discover/host-load* "slow"))))
+      (is (= 1 (:errors (get @discover/host-load* "slow"))))
+      (is (< (discover/host-score "fast") (discover/host-score "slow"))))
+    (testing "in-flight"
+      (discover/request-start "fast")
+      (discover/request-start "fast")
+      (is (= 2 (:in-flight (get @discover/host-load* "fast"))))
+      (is (< 20 (discover/host-score "fast")))
+      (discover/request-end "fast" 10 false)
+      (discover/request-end "fast" 10 false))
+    (testing "two-choices"
+      (is (every? #(= "fast" %)
+                  (repeatedly 20 #(discover/pick-host [["fast" {}] ["slow" {}]])))))
+    (testing "pruned"
+      (let [peers @discover/peers*]
+        (try
+          (reset! discover/peers* {:__partition_l {"fast" {} "slow" {} "busy" {}}})
+          (discover/request-start "busy")
+          (discover/request-start "gone")
+          (discover/request-end "gone" 10 false)
+          (discover/prune-host-load (time-ms))
+          (is (= #{"fast" "slow" "busy"} (set (keys @discover/host-load*))))
+          (discover/prune-host-load (+ (time-ms) default-peer-load-max-age-ms))
+          ;; busy still has a request in flight
+          (is (= #{"busy"} (set (keys @discover/host-load*))))
+          (finally
+            (reset! discover/peers* peers)))))
+    (reset! discover/host-load* old)))
+
+(deftest test-hedge
+  (let [peers @discover/peers*]
+    (reset! discover/peers* {:__partition_h {"slow-host" {:update @timer/time*}
+                                             "other-host" {:update @timer/time*}}})
+    (testing "delay"
+      (is (= 10 (hedge-delay {:hedge-after-ms 10})))
+      (is (nil? (hedge-delay {}))))
+    (testing "hedged"
+      (.set hedge-budget [1000.0 0.0 (time-ms)])
+      (with-redefs [search-remote-on (fn [resolved hosts input c]
+                                       (async/>!! c {:host resolved})
+                                       resolved)]
+        (let [c (async/chan 2)]
+          (is (= {:host "other-host"}
+                 (await-part [["__partition_h"] {} c "slow-host"] (+ (time-ms) 10) (+ (time-ms) 1000))))
+          (is (< 0.9 (second (.get hedge-budget)) 1.1)))))
+    (testing "a hedged part does not wait past its deadline"
+      (.set hedge-budget [1000.0 0.0 (time-ms)])
+      (let [timeouts (atom [])]
+        (with-redefs [search-remote-on (fn [resolved hosts input c]
+                                         (swap! timeouts conj (:timeout input))
+                                         resolved)]
+          (let [c (async/chan 2)
+                t0 (time-ms)]
+            (is (:exception (await-part [["__partition_h"] {:timeout 200} c "slow-host"]
+                                        (+ t0 100)
+                                        (+ t0 200))))
+            (is (< (- (time-ms) t0) 400))
+            (is (<= (first @timeouts) 100))))))
+    (testing "capped"
+      (.set hedge-budget [0.0 0.0 (time-ms)])
+      (let [c (async/chan 2)]
+        (future (Thread/sleep 50) (async/>!! c {:host "slow-host"}))
+        (is (= {:host "slow-host"}
+               (await-part [["__partition_h"] {} c "slow-host"] (time-ms) (+ (time-ms) 1000))))
+        (is (= 0.0 (second (.get hedge-budget))))))
+    (testing "the budget decays"
+      (.set hedge-budget [1000.0 0.0 (- (time-ms) (* 20 default-hedge-half-life-ms))])
+      (is (not (take-hedge?)))
+      (dotimes [i 50]
+        (count-hedge-part))
+      (is (take-hedge?))
+      (is (take-hedge?))
+      (is (not (take-hedge?))))
+    (testing "not taken without another replica"
+      (.set hedge-budget [1000.0 0.0 (time-ms)])
+      (let [c (async/chan 2)]
+        (async/>!! c {:host "slow-host"})
+        (is (not (hedge ["__partition_nobody"] {} c "slow-host" (+ (time-ms) 1000))))
+        (is (= 0.0 (second (.get hedge-budget))))))
+    (reset! discover/peers* peers)))
+
+(deftest test-doc-values
+  (let [index "__lein-test-doc-values"
+        searcher (fn [extra]
+                   (search (merge {:index index
+                                   :query {:match-all {}}
+                                   :size 10}
+                                  extra)))
+        uninverted (fn []
+                     (set (for [^org.apache.lucene.search.FieldCache$CacheEntry e
+                                (.getCacheEntries org.apache.lucene.search.FieldCache/DEFAULT)]
+                            (.getFieldName e))))]
+    (delete-all index)
+    (store {:index index
+            :documents (into [] (for [i (range 5)]
+                                  {:id (str i)
+                                   :rank_dv_int i
+                                   :weight_dv_float (- 10 i)
+                                   :title_dv_not_analyzed (str "t" (- 5 i))}))})
+    (refresh-search-manager index)
+    (testing "sort"
+      (is (= ["4" "3" "2" "1" "0"]
+             (map :id (:hits (searcher {:sort [{:field "rank_dv_int" :reverse true}]})))))
+      (is (= ["4" "3" "2" "1" "0"]
+             (map :id (:hits (searcher {:sort [{:field "title_dv_not_analyzed" :reverse false}]}))))))
+    (testing "expression bindings"
+      (is (= ["0" "1" "2" "3" "4"]
+             (map :id (:hits (searcher {:sort [{:expression "weight_dv_float - rank_dv_int"
+                                                :bindings ["weight_dv_float" "rank_dv_int"]}]}))))))
+    (testing "projection"
+      (is (= {:rank_dv_int 3 :title_dv_not_analyzed "t2"}
+             (select-keys (first (:hits (searcher {:query {:term {:field "id" :value "3"}}
+                                                   :fields {}
+                                                   :doc-values ["rank_dv_int" "title_dv_not_analyzed"]})))
+                          [:rank_dv_int :title_dv_not_analyzed]))))
+    (testing "read from the doc values, not uninverted"
+      (is (= {} (select-keys (first (:hits (searcher {:fields {}
+                                                      :doc-values ["id"]})))
+                             [:id])))
+      (let [names (uninverted)]
+        (is (not (names "id")))
+        (is (not (names "rank_dv_int")))
+        (is (not (names "weight_dv_float")))
+        (is (not (names "title_dv_not_analyzed")))))
+    (testing "doc values are single valued"
+      (is (thrown? Throwable
+                   (store {:index index
+                           :documents [{:id "x" :rank_dv_int [1 2]}]}))))
+    (delete-all index)))
+
+(deftest test-global-stats
+  (let [index "__lein-test-global-stats"
+        other "__lein-test-other-global-stats"
+        rare-scores (fn [r] (map #(double (:_score %)) (filter #(= "rare" (:name %)) (:hits r))))
+        clj-score {:term-payload-clj-score
+                   {:field "name" :value "rare"
+                    :clj-eval "
+(fn [ctx]
+  (let [^bzzz.java.query.ExpressionContext$PerTerm pt (first (.per_term ctx))]
+    (+ (* 1000 (.doc_freq pt)) (.cs_max_doc pt))))"}}]
+    (delete-all index)
+    (delete-all other)
+    (store {:index index :shard 0
+            :documents (into [{:name "rare"}] (for [i (range 10)] {:name "aaa"}))})
+    (store {:index index :shard 1
+            :documents [{:name "rare"} {:name "bbb"}]})
+    (store {:index other
+            :documents [{:name "rare"} {:name "bbb"}]})
+    (refresh-search-manager index)
+    (refresh-search-manager other)
+    (testing "shards"
+      (let [local (rare-scores (search {:index index :query {:term {:field "name" :value "rare"}}}))
+            global (rare-scores (search {:index index :global-stats true :query {:term {:field "name" :value "rare"}}}))]
+        (is (= 2 (count local) (count global)))
+        (is (not= (first local) (second local)))
+        (is (= (first global) (second global))))
+      (reset! query/allow-unsafe-queries* true)
+      (try
+        (is (= #{1011.0 1002.0}
+               (set (rare-scores (search {:index index :query clj-score})))))
+        (is (= #{2013.0}
+               (set (rare-scores (search {:index index :query clj-score :global-stats true})))))
+        (finally
+          (reset! query/allow-unsafe-queries* false))))
+    (testing "cached by reader version"
+      (let [before (:hits (term-stats-cache-stat))]
+        (search {:index index :global-stats true :query {:term {:field "name" :value "rare"}}})
+        (is (< before (:hits (term-stats-cache-stat))))))
+    (testing "peers"
+      ;; every "peer" is one of the indexes
+      (with-redefs [search-remote (fn [hosts input c]
+                                    (async/>!! c (search (assoc input :index (first (part-of hosts)))))
+                                    (first (part-of hosts)))]
+        (let [q {:query {:term {:field "name" :value "rare"}} :size 10}
+              local (rare-scores (search-many [index other] q))
+              global (rare-scores (search-many [index other] (assoc q :global-stats true)))]
+          (is (= 3 (count local) (count global)))
+          (is (< 1 (count (set local))))
+          (is (= 1 (count (set global)))))))
+    (delete-all index)
+    (delete-all other)))
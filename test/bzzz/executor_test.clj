@@ -0,0 +1,44 @@
+(ns bzzz.executor-test
+  (:import (java.util.concurrent RejectedExecutionException))
+  (:use clojure.test)
+  (:require [bzzz.executor :as executor])
+  (:require [bzzz.index-search :as index-search]))
+
+(deftest test-executor
+  (testing "submit-all-if"
+    (is (= [1 2 3] (executor/submit-all-if :search false [(fn [] 1) (fn [] 2) (fn [] 3)])))
+    (is (= [1 2 3] (map deref (executor/submit-all-if :search true [(fn [] 1) (fn [] 2) (fn [] 3)])))))
+
+  (testing "rejected"
+    (let [old @executor/config*
+          latch (promise)]
+      (executor/shutdown)
+      (reset! executor/config* {:search {:threads 1 :queue 1}})
+      (try
+        (let [ran (atom 0)]
+          (is (thrown? RejectedExecutionException
+                       (executor/submit-all-if :search true (repeat 3 (fn [] (swap! ran inc) @latch)))))
+          ;; all or nothing, none of them was submitted
+          (Thread/sleep 50)
+          (is (= 0 @ran)))
+        (let [stat (:search (executor/executor-stat))]
+          (is (= 1 (:max-pool-size stat)))
+          (is (= 2 (:available-permits stat))))
+        (let [running (executor/submit-all-if :search true (repeat 2 (fn [] @latch)))]
+          (is (thrown? RejectedExecutionException
+                       (executor/submit :search (fn [] 1))))
+          (deliver latch true)
+          (is (= [true true] (map deref running))))
+        (Thread/sleep 50)
+        (is (= 2 (:available-permits (:search (executor/executor-stat)))))
+        (testing "a task rejected inside a task rejects the request"
+          ;; like a :search task whose :segment slices are rejected
+          (is (thrown? RejectedExecutionException
+                       (index-search/realize-result
+                        (executor/submit :search #(throw (RejectedExecutionException. "segment pool is full"))))))
+          (is (:exception (index-search/realize-result
+                           (executor/submit :search #(throw (Exception. "failed")))))))
+        (finally
+          (deliver latch true)
+          (executor/shutdown)
+          (reset! executor/config* old))))))
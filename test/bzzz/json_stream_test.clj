@@ -0,0 +1,73 @@
+(ns bzzz.json-stream-test
+  (:import (java.io ByteArrayInputStream)
+           (java.lang.ref WeakReference))
+  (:require [clojure.data.json :as json])
+  (:use clojure.test
+        bzzz.util
+        bzzz.json-stream
+        bzzz.index-directory
+        bzzz.index-store
+        bzzz.index-search))
+
+(def test-index-name "__lein-test-testing-index-json-stream")
+
+(defn read-str-stream [^String s]
+  (read-stream (ByteArrayInputStream. (.getBytes s "UTF-8"))))
+
+(deftest test-json-stream
+  (testing "read"
+    (let [input {:documents [{:name "a ] [ \" {"} {:nested {:documents [1 2]}}]
+                 :index "x"
+                 :facets {:name {}}}
+          streamed (read-str-stream (json/write-str input))]
+      (is (= input (update-in streamed [:documents] #(into [] %))))
+      (is (= (seq (:documents input)) (seq (:documents streamed)) (seq (:documents streamed))))
+      (is (= {:x {:documents [1]}} (read-str-stream "{\"x\":{\"documents\":[1]}}")))
+      (is (= {} (read-str-stream "")))))
+
+  (testing "spool"
+    ;; bigger than the in memory part of the spool, with keys after
+    ;; the documents
+    (let [documents (for [i (range 5000)] {:i i :blob (apply str (repeat 1000 "x"))})
+          input (read-str-stream (str "{\"documents\":" (json/write-str documents) ",\"index\":\"x\"}"))]
+      (is (= "x" (:index input)))
+      (is (= (range 5000) (map :i (:documents input))))
+      (is (= (range 5000) (map :i (:documents input))))))
+
+  (testing "write"
+    (doseq [result [{:total 1 :hits (for [i (range 200)] {:i i})}
+                    {:hits []}
+                    {:total 0}]]
+      (is (= (jr (json/write-str result))
+             (jr (apply str (let [c (json-chunks result)]
+                              (if (string? c) [c] c))))))))
+
+  (testing "store"
+    (delete-all test-index-name)
+    (let [ret (store (read-str-stream (json/write-str {:documents (for [i (range 100)] {:name (str "doe " i)})
+                                                       :number-of-shards 2
+                                                       :index test-index-name})))]
+      (is (= 100 (reduce + (for [r ret [_ v] r] (:attempt-to-write v)))))
+      (refresh-search-manager test-index-name)
+      (is (= 100 (:total (search {:index test-index-name
+                                  :query {:term {:field "name" :value "doe"}}})))))
+    (delete-all test-index-name))
+
+  (testing "store does not hold on to the documents"
+    ;; like the spooled documents, every read makes new maps
+    (let [refs (atom [])
+          collected (atom [])
+          documents (reify clojure.lang.Seqable
+                      (seq [this]
+                        (seq (for [i (range 2000)]
+                               (let [doc {:name (str "doe " i) :blob (apply str (repeat 1000 "x"))}]
+                                 (swap! refs conj (WeakReference. doc))
+                                 (when (= i 1999)
+                                   (System/gc)
+                                   (swap! collected conj (count (filter #(nil? (.get ^WeakReference %))
+                                                                        (take 1000 (take-last 2000 @refs))))))
+                                 doc)))))]
+      (store {:index test-index-name :documents documents})
+      (is (seq @collected))
+      (is (every? #(< 900 %) @collected)))
+    (delete-all test-index-name)))
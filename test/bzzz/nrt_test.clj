@@ -0,0 +1,37 @@
+(ns bzzz.nrt-test
+  (:use clojure.test
+        bzzz.core
+        bzzz.util
+        bzzz.index-directory
+        bzzz.index-store
+        bzzz.index-search))
+(def test-index-name "__lein-test-testing-index-nrt-test")
+
+(deftest test-app
+  (testing "cleanup-before"
+    (delete-all test-index-name))
+
+  (testing "nrt"
+    (reset! nrt* true)
+    (shutdown)
+    (let [search-doe (fn [generation]
+                       (search {:index test-index-name
+                                :generation generation
+                                :query {:term {:field "name"
+                                               :value "doe"}}}))
+          r0 (search-doe nil)
+          stored (store {:index test-index-name
+                         :documents [{:name "jack doe"}
+                                     {:name "john doe"}]})
+          shard (sharded test-index-name 0)
+          generation (get-in stored [shard :generation])
+          r1 (search-doe {(keyword shard) generation})]
+      (is (= 0 (:total r0)))
+      (is (not (nil? generation)))
+      (is (nrt? shard))
+      (is (= 2 (:total r1)))))
+
+  (testing "cleanup-after"
+    (delete-all test-index-name)
+    (reset! nrt* false)
+    (shutdown)))
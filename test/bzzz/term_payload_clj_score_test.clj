@@ -3,11 +3,15 @@
         bzzz.core
         bzzz.util
         bzzz.analyzer
+        bzzz.index-directory
         bzzz.index-store
         bzzz.index-search
         bzzz.query)
+  (:require [bzzz.cached-eval :as cached-eval])
   (:import (bzzz.java.analysis CodeTokenizer BytePayloadTokenizer)
-           (bzzz.java.query Helper Helper$TermPayload)))
+           (bzzz.java.query Helper Helper$TermPayload BlockDataInput)
+           (org.apache.lucene.util BytesRef)
+           (com.googlecode.javaewah EWAHCompressedBitmap)))
 
 (def test-index-name "__lein-test-testing-index-term-payload-clj-score-test")
 
@@ -235,5 +239,137 @@
         (is (= (int (:_score hit)) (int (.get ^java.util.List (first (:_result_state hit)) 0)))))))
 
 
+  (testing "per search state with parallel segments and cached queries"
+    (let [x (reset! allow-unsafe-queries* true)
+          index (str test-index-name "-parallel")
+          _ (delete-all index)
+          ;; every store commits, so each batch is its own segment
+          _ (doseq [batch (range 4)]
+              (store {:index index
+                      :documents (into [] (for [i (range 5)]
+                                            {:name_payload (str "zzzxxx|0000000" i)
+                                             :some_integer (mod (+ batch i) 3)}))
+                      :analyzer {:name_payload {:type "custom"
+                                                :tokenizer "byte-payload"}}}))
+          _ (refresh-search-manager index)
+          searcher (fn [parallel]
+                     (search {:index index
+                              :explain true
+                              :size 20
+                              :parallel-segments parallel
+                              :query {:term-payload-clj-score {:field "name_payload", :value "zzzxxx"
+                                                               :field-cache ["some_integer"]
+                                                               :fixed-bucket-aggregation [{:name "some_integer"
+                                                                                           :buckets 3}]
+                                                               :clj-eval "
+(fn [^bzzz.java.query.ExpressionContext ctx]
+  (let [some_integer (.fc_get_int ctx \"some_integer\")]
+    (when-not (.explanation ctx)
+      (.fba_aggregate_into_bucket ctx 0 some_integer 1))
+    (.result_state_append ctx some_integer)
+    (float (+ 1 (.payload_get_int ctx)))))"}}}))
+          sequential (searcher false)
+          again (searcher false)
+          parallel (searcher true)
+          comparable (fn [r] (map #(select-keys % [:_score :some_integer :_result_state]) (:hits r)))]
+      (is (< 1 (get-in (index-stat) [(sharded index 0) :reader :leaves])))
+      (is (= 20 (:total sequential)))
+      (is (= [6 7 7] (sort (map :count (:some_integer (:facets sequential))))))
+      (doseq [hit (:hits sequential)]
+        (is (= [(int-or-parse (:some_integer hit))] (vec (first (:_result_state hit))))))
+      (doseq [r [again parallel]]
+        (is (= (:total sequential) (:total r)))
+        (is (= (:facets sequential) (:facets r)))
+        (is (= (comparable sequential) (comparable r))))
+      (delete-all index)
+      (reset! allow-unsafe-queries* false)))
+
+  (testing "bitmap payloads"
+    (doseq [bits [[0] [1 5 64 1000] (range 0 200000 37)]]
+      (let [bitmap (EWAHCompressedBitmap/bitmapOf (int-array bits))
+            serialized (Helper/serialize_compressed_bitmap bitmap)
+            input (BlockDataInput.)
+            decoded (EWAHCompressedBitmap.)]
+        (is (.reset input (BytesRef. serialized)))
+        (.deserialize decoded input)
+        (is (= bitmap decoded))))
+    (is (not (.reset (BlockDataInput.) (BytesRef. (byte-array [1 2 3 4 5]))))))
+
+  (testing "many terms"
+    (let [x (reset! allow-unsafe-queries* true)
+          analyzer {:name_code {:type "custom" :tokenizer "code"}}
+          _ (store {:index test-index-name
+                    :documents [{:id "code-a" :name_code "foo bar\nbar baz\n"}
+                                {:id "code-b" :name_code "baz qux\n"}]
+                    :analyzer analyzer})
+          r (search {:index test-index-name
+                     :must-refresh true
+                     :analyzer analyzer
+                     :query {:term-payload-clj-score {:field "name_code"
+                                                      :value (clojure.string/join " " (concat ["foo" "bar" "baz" "qux"]
+                                                                                             (for [i (range 20)] (str "missing" i))))
+                                                      :tokenize true
+                                                      :clj-eval "
+(fn [^bzzz.java.query.ExpressionContext ctx]
+  (float (reduce + (for [^bzzz.java.query.ExpressionContext$PerTerm pt (.per_term ctx)
+                         :when (= (.docID (.postings pt)) (.doc_id ctx))]
+                     (.cardinality (.bitmap_from_payload pt))))))"}}})
+          x (reset! allow-unsafe-queries* false)]
+      (is (= 2 (:total r)))
+      (is (= {"code-a" 4.0 "code-b" 2.0}
+             (into {} (for [hit (:hits r)] [(:id hit) (:_score hit)]))))))
+
+  (testing "primitive scorers"
+    (is (instance? clojure.lang.IFn$OD (cached-eval/get-or-eval-scorer "(fn [ctx] (float 1))")))
+    (is (instance? clojure.lang.IFn$OOD (cached-eval/get-or-eval-scorer "(fn scorer [ctx args] 1)")))
+    (is (not (instance? clojure.lang.IFn$OD (cached-eval/get-or-eval-scorer "(fn [ctx & more] (float 1))"))))
+    (is (not (instance? clojure.lang.IFn$OD (cached-eval/get-or-eval "(fn [ctx] (float 1))"))))
+    (is (= 2.0 ((cached-eval/get-or-eval-scorer "(fn [x] (if (nil? x) (recur 1) 2.0))") nil)))
+    (let [x (reset! allow-unsafe-queries* true)
+          r (search {:index test-index-name
+                     :query {:term-payload-clj-score {:field "name_payload", :value "zzzxxx"
+                                                      :field-cache ["some_integer","some_float","some_double","some_long"]
+                                                      :clj-eval "
+(fn [ctx]
+  (+ (.fc_int ctx 0) (.fc_float ctx 1) (.fc_double ctx 2) (.fc_long ctx 3)
+     (- (.fc_get_int ctx \"some_integer\"))))"}}})
+          x (reset! allow-unsafe-queries* false)]
+      (is (= 4 (:total r)))
+      (is (= #{60.0} (set (map :_score (:hits r)))))))
+
   (testing "cleanup-after"
     (delete-all test-index-name)))
+
+(deftest test-expr-cache
+  (testing "concurrent"
+    (let [expr "(fn [ctx] (float 42))"
+          fns (doall (pmap (fn [_] (cached-eval/get-or-eval-scorer expr)) (range 16)))]
+      (is (= 1 (count (set (map #(System/identityHashCode %) fns)))))
+      (is (identical? (first fns) (cached-eval/get-or-eval-scorer expr)))))
+
+  (testing "failures"
+    (let [before (:failures (cached-eval/expr-cache-stat))]
+      (is (thrown? Throwable (cached-eval/get-or-eval "(fn [x] (undefined-symbol-in-expr-cache-test x))")))
+      (is (thrown? Throwable (cached-eval/get-or-eval "(fn [x] (undefined-symbol-in-expr-cache-test x))")))
+      (is (= (+ before 2) (:failures (cached-eval/expr-cache-stat))))))
+
+  (testing "warmup"
+    (let [file (java.io.File/createTempFile "bzzz-warmup" ".json")
+          misses (:misses (cached-eval/expr-cache-stat))]
+      (spit file (clojure.data.json/write-str {:eval ["(fn [x] (+ x 1000001))"]
+                      :scorer ["(fn [ctx] 1000002)" "(fn [ctx] (("]}))
+      (cached-eval/warmup (.getAbsolutePath file))
+      (.delete file)
+      (is (= (+ misses 3) (:misses (cached-eval/expr-cache-stat))))
+      (is (= 1000002.0 ((cached-eval/get-or-eval-scorer "(fn [ctx] 1000002)") nil)))
+      (is (= (+ misses 3) (:misses (cached-eval/expr-cache-stat))))))
+
+  (testing "evictions"
+    (let [evictions (:evictions (cached-eval/expr-cache-stat))]
+      (cached-eval/set-expr-cache-size 2)
+      (doseq [i (range 5)]
+        (cached-eval/get-or-eval (str "(fn [x] (+ x " i "))")))
+      (is (= 2 (:size (cached-eval/expr-cache-stat))))
+      (is (< evictions (:evictions (cached-eval/expr-cache-stat))))
+      (cached-eval/set-expr-cache-size bzzz.const/default-expr-cache-size)
+      (is (= bzzz.const/default-expr-cache-size (:capacity (cached-eval/expr-cache-stat)))))))
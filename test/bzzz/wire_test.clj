@@ -0,0 +1,40 @@
+(ns bzzz.wire-test
+  (:import (bzzz.java.wire BinaryCodec)
+           (org.apache.lucene.util BytesRef))
+  (:require [clojure.data.json :as json])
+  (:use clojure.test
+        bzzz.util))
+
+(defn via-json [x]
+  (jr (json/write-str x)))
+
+(defn via-binary [x]
+  (BinaryCodec/decode ^bytes (BinaryCodec/encode x)))
+
+(deftest test-binary-codec
+  (testing "same as json"
+    (let [result {:total 3
+                  :took 12
+                  :failed []
+                  :facets {:name [{:label "jack" :count 2}
+                                  {:label "doe" :count 1}]}
+                  :hits [{:_score 1.5 :name "jack doe" :id "1"
+                          :_sort [{:reverse false :name "age" :value 3}]}
+                         {:_score 0.5 :name ["a" "b" 3] :id "2" :missing nil
+                          :_sort [{:reverse true :name :age :value -7}]}]
+                  :flag true
+                  :unicode "бззз ☃"}]
+      (is (= (via-json result) (via-binary result)))
+      (is (= (via-json (assoc result :hits '())) (via-binary (assoc result :hits '()))))))
+
+  (testing "types"
+    (is (= Long/MIN_VALUE (via-binary Long/MIN_VALUE)))
+    (is (= Long/MAX_VALUE (via-binary Long/MAX_VALUE)))
+    (is (= 0.1 (via-binary (float 0.1))))
+    (is (= (via-json (double (float 0.1))) (via-binary (double (float 0.1)))))
+    (is (= "abc" (via-binary (BytesRef. "abc"))))
+    (is (= [1 2] (via-binary (into-array Object [1 2]))))
+    (is (= {:a {:a 1}} (via-binary {"a" {:a 1}}))))
+
+  (testing "not binary"
+    (is (thrown? java.io.IOException (BinaryCodec/decode (.getBytes "{}"))))))